@@ -0,0 +1,122 @@
+-- Query plans of listing and counting messages, before and after the indexes of V4__indexes.sql.
+--
+-- Seeds a scratch schema with 10M delivery rows: 10,000 users with 1,000 messages each,
+-- of which about 2% are unread. Run with:
+--
+--   psql -h localhost -U ims -d ims -f benchmark/inbox-indexes.sql > inbox-indexes.txt
+--
+-- Seeding takes a few minutes and needs about 2GB of disk, drop the schema afterwards.
+
+\timing on
+\set user '\'user-4242@egi.eu\''
+
+DROP SCHEMA IF EXISTS msg_bench CASCADE;
+CREATE SCHEMA msg_bench;
+SET search_path = msg_bench;
+
+-- Same tables as produced by the migrations in src/main/resources/db/migration
+CREATE TABLE message_contents (
+    id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    message varchar(2048),
+    category varchar(10),
+    link varchar(256),
+    sentOn timestamp(6)
+);
+
+CREATE TABLE messages (
+    id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    contentId bigint REFERENCES message_contents (id),
+    wasRead boolean,
+    checkinUserId varchar(120),
+    sentOn timestamp(6),
+    changedOn timestamp(6)
+);
+
+CREATE TABLE user_inbox_stats (
+    checkinUserId varchar(120) PRIMARY KEY,
+    unread bigint,
+    total bigint,
+    lastReadAllAt timestamp(6),
+    revision bigint,
+    changedOn timestamp(6)
+);
+
+-- One content per message, sent over the last year, interleaved across users
+INSERT INTO message_contents (message, category, link, sentOn)
+    SELECT 'Benchmark message ' || n, (ARRAY['info', 'warning', 'action'])[1 + n % 3], NULL,
+           LOCALTIMESTAMP - make_interval(secs => (10000000 - n) * 3.15)
+    FROM generate_series(1, 10000000) AS n;
+
+INSERT INTO messages (contentId, wasRead, checkinUserId, sentOn, changedOn)
+    SELECT c.id, (c.id / 10000) % 50 <> 0, 'user-' || (c.id % 10000) || '@egi.eu', c.sentOn, c.sentOn
+    FROM message_contents c;
+
+INSERT INTO user_inbox_stats (checkinUserId, unread, total, revision, changedOn)
+    SELECT checkinUserId, COUNT(*) FILTER (WHERE NOT wasRead), COUNT(*), 1, LOCALTIMESTAMP
+    FROM messages GROUP BY checkinUserId;
+
+VACUUM ANALYZE message_contents;
+VACUUM ANALYZE messages;
+VACUUM ANALYZE user_inbox_stats;
+
+-- Cursor of the second page of the user, see MessageCursor
+SELECT sentOn AS cursor_sent, id AS cursor_id FROM messages
+    WHERE checkinUserId = :user ORDER BY sentOn DESC, id DESC OFFSET 19 LIMIT 1 \gset
+
+\echo '==================== Before ===================='
+
+\echo '---- List, first page'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT m.id, m.wasRead, m.sentOn, c.message, c.category, c.link
+FROM messages m JOIN message_contents c ON c.id = m.contentId
+WHERE m.checkinUserId = :user
+ORDER BY m.sentOn DESC, m.id DESC LIMIT 21;
+
+\echo '---- List, next page'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT m.id, m.wasRead, m.sentOn, c.message, c.category, c.link
+FROM messages m JOIN message_contents c ON c.id = m.contentId
+WHERE m.checkinUserId = :user AND (m.sentOn, m.id) < (:'cursor_sent', :cursor_id)
+ORDER BY m.sentOn DESC, m.id DESC LIMIT 21;
+
+\echo '---- Count unread'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM messages m
+WHERE m.checkinUserId = :user AND m.wasRead = false
+  AND NOT EXISTS (SELECT 1 FROM user_inbox_stats s
+                  WHERE s.checkinUserId = m.checkinUserId AND s.lastReadAllAt >= m.sentOn);
+
+-- Same statements as V4__indexes.sql
+CREATE INDEX messages_recipient_sent ON messages (checkinUserId, sentOn DESC, id DESC);
+CREATE INDEX messages_recipient_unread ON messages (checkinUserId, sentOn) WHERE wasRead = false;
+CREATE INDEX messages_content ON messages (contentId);
+ANALYZE messages;
+
+\echo '==================== After ===================='
+
+\echo '---- List, first page'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT m.id, m.wasRead, m.sentOn, c.message, c.category, c.link
+FROM messages m JOIN message_contents c ON c.id = m.contentId
+WHERE m.checkinUserId = :user
+ORDER BY m.sentOn DESC, m.id DESC LIMIT 21;
+
+\echo '---- List, next page'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT m.id, m.wasRead, m.sentOn, c.message, c.category, c.link
+FROM messages m JOIN message_contents c ON c.id = m.contentId
+WHERE m.checkinUserId = :user AND (m.sentOn, m.id) < (:'cursor_sent', :cursor_id)
+ORDER BY m.sentOn DESC, m.id DESC LIMIT 21;
+
+\echo '---- Count unread'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM messages m
+WHERE m.checkinUserId = :user AND m.wasRead = false
+  AND NOT EXISTS (SELECT 1 FROM user_inbox_stats s
+                  WHERE s.checkinUserId = m.checkinUserId AND s.lastReadAllAt >= m.sentOn);
+
+\echo '---- Index sizes'
+SELECT indexrelname AS index, pg_size_pretty(pg_relation_size(indexrelid)) AS size
+FROM pg_stat_user_indexes WHERE schemaname = 'msg_bench' ORDER BY indexrelname;
+
+RESET search_path;
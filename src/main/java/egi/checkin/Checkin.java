@@ -86,13 +86,12 @@ public class Checkin {
     public boolean init(CheckinConfig checkinConfig, IntegratedManagementSystemConfig imsConfig, String stub) {
 
         this.stub = stub;
+        this.checkinConfig = checkinConfig;
+        this.imsConfig = imsConfig;
 
         if(null != checkin)
             return true;
 
-        this.checkinConfig = checkinConfig;
-        this.imsConfig = imsConfig;
-
         MDC.put("checkinServer", this.checkinConfig.server());
 
         log.debug("Obtaining REST client for EGI Check-in");
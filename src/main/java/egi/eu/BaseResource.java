@@ -3,6 +3,7 @@ package egi.eu;
 import org.jboss.logging.Logger;
 import org.jboss.logging.MDC;
 
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.UriInfo;
 import jakarta.ws.rs.core.UriBuilder;
@@ -45,6 +46,32 @@ public class BaseResource {
         return value;
     }
 
+    /***
+     * Check if the client already has the current version of a resource.
+     * @param ifNoneMatch The value of the If-None-Match request header, can be null
+     * @param etag The entity tag of the current version of the resource, can be null
+     * @return True if the resource was not modified and 304 should be returned
+     */
+    protected boolean notModified(String ifNoneMatch, EntityTag etag) {
+        if(null == ifNoneMatch || null == etag)
+            return false;
+
+        // If-None-Match uses weak comparison
+        for(var tag : ifNoneMatch.split(",")) {
+            tag = tag.strip();
+            if(tag.equals("*"))
+                return true;
+
+            if(tag.startsWith("W/"))
+                tag = tag.substring(2);
+
+            if(tag.equals("\"" + etag.getValue() + "\""))
+                return true;
+        }
+
+        return false;
+    }
+
     /***
      * Helper to obtain the original request URI, even when running behind a reverse proxy.
      * Note that the proxy must forward the original request path in the HTTP header X-Real-Path.
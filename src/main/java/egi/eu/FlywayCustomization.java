@@ -0,0 +1,28 @@
+package egi.eu;
+
+import io.quarkus.flyway.FlywayConfigurationCustomizer;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+
+import jakarta.inject.Singleton;
+
+import java.util.Map;
+
+
+/***
+ * Customizes the Flyway configuration beyond what quarkus.flyway supports
+ * See https://quarkus.io/guides/flyway#customizing-flyway
+ */
+@Singleton
+public class FlywayCustomization implements FlywayConfigurationCustomizer {
+
+    /***
+     * Hold the migration lock for the session instead of in a transaction.
+     * CREATE INDEX CONCURRENTLY waits for all open transactions, including the one
+     * holding a transactional lock, so such migrations would block forever.
+     * @param configuration The Flyway configuration to customize
+     */
+    @Override
+    public void customize(FluentConfiguration configuration) {
+        configuration.configuration(Map.of("flyway.postgresql.transactional.lock", "false"));
+    }
+}
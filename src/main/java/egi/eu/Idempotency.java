@@ -0,0 +1,211 @@
+package egi.eu;
+
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.pgclient.PgPool;
+import io.vertx.mutiny.sqlclient.SqlConnection;
+import io.vertx.mutiny.sqlclient.Tuple;
+import org.jboss.logging.Logger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import egi.eu.entity.MessageEntity;
+import egi.eu.entity.OutboxEntity;
+
+
+/***
+ * Ensures that send requests retried with the same idempotency key only send messages once.
+ * Results are kept in a bounded in-memory cache, backed by the database so that they are
+ * shared by all instances of the service and survive restarts.
+ */
+@ApplicationScoped
+public class Idempotency {
+
+    private static final Logger log = Logger.getLogger(Idempotency.class);
+
+    public static final String HEADER = "Idempotency-Key";
+    public static final int MAX_KEY_LENGTH = 255;
+
+    private static final String FIND_RESULT =
+            "SELECT sentMessages FROM message_idempotency " +
+            "WHERE id = $1 AND sentMessages IS NOT NULL AND createdOn >= $2";
+
+    // Waits for a concurrent send with the same key to finish, then does nothing unless that one expired
+    private static final String CLAIM_KEY =
+            "INSERT INTO message_idempotency (id, senderUserId, createdOn) VALUES ($1, $2, $3) " +
+            "ON CONFLICT (id) DO UPDATE SET senderUserId = EXCLUDED.senderUserId, createdOn = EXCLUDED.createdOn, " +
+                                              "sentMessages = NULL " +
+            "WHERE message_idempotency.createdOn < $4";
+
+    private static final String STORE_RESULT =
+            "UPDATE message_idempotency SET sentMessages = $2 WHERE id = $1";
+
+    private static final String FIND_QUEUED =
+            "SELECT outboxId FROM message_idempotency WHERE id = $1";
+
+    private static final String QUEUE_REQUEST =
+            "INSERT INTO message_outbox (message, category, link, checkinUserId, process, role, senderUserId, " +
+                                        "status, attempts, createdOn, changedOn) " +
+            "VALUES ($1, $2, $3, $4, $5, $6, $7, $8, 0, $9, $9) RETURNING id";
+
+    private static final String STORE_QUEUED =
+            "UPDATE message_idempotency SET outboxId = $2 WHERE id = $1";
+
+    private static final String PURGE_EXPIRED =
+            "DELETE FROM message_idempotency WHERE createdOn < $1";
+
+    @Inject
+    PgPool client;
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    private LruCache<String, Integer> results;
+
+
+    /***
+     * Setup the cache
+     */
+    @PostConstruct
+    void init() {
+        var config = messagesConfig.idempotency();
+        results = new LruCache<>(config.cacheSize(), config.ttl());
+    }
+
+    /***
+     * Build the key under which the result of a send request is stored.
+     * Keys supplied by different users never collide.
+     * @param checkinUserId The sender
+     * @param idempotencyKey The idempotency key supplied by the sender
+     * @return Key of the send request
+     */
+    public static String requestKey(String checkinUserId, String idempotencyKey) {
+        return checkinUserId + "/" + idempotencyKey;
+    }
+
+    /***
+     * Get the result of a send request that was already completed.
+     * @param requestKey The key of the send request, see {@link #requestKey(String, String)}
+     * @return Number of messages sent, null if no send request with this key was completed
+     */
+    public Uni<Integer> findAsync(String requestKey) {
+        var sent = results.get(requestKey);
+        if(null != sent)
+            return Uni.createFrom().item(sent);
+
+        var notBefore = LocalDateTime.now().minus(messagesConfig.idempotency().ttl());
+        return client.preparedQuery(FIND_RESULT).execute(Tuple.of(requestKey, notBefore))
+            .onItem().transform(rows -> {
+                if(0 == rows.rowCount())
+                    return null;
+
+                return results.put(requestKey, rows.iterator().next().getInteger("sentmessages"));
+            });
+    }
+
+    /***
+     * Send messages, unless a send request with the same key was already completed.
+     * The key is claimed in the same transaction as the messages are inserted, thus concurrent
+     * requests with the same key wait for each other and only the first one sends messages.
+     * @param requestKey The key of the send request, see {@link #requestKey(String, String)}
+     * @param checkinUserId The sender
+     * @param send Inserts the messages using the supplied connection, returns the messages sent
+     * @param onSent Called with the messages inserted by this request, after they were committed
+     * @return Number of messages sent, by this or by the original request
+     */
+    public Uni<Integer> sendOnce(String requestKey, String checkinUserId,
+                                 Function<SqlConnection, Uni<List<MessageEntity>>> send,
+                                 Consumer<List<MessageEntity>> onSent) {
+
+        final var now = LocalDateTime.now();
+        final var expired = now.minus(messagesConfig.idempotency().ttl());
+
+        return client.withTransaction(connection -> {
+                return connection.preparedQuery(CLAIM_KEY)
+                    .execute(Tuple.of(requestKey, checkinUserId, now, expired))
+                    .chain(claimed -> {
+                        if(0 == claimed.rowCount())
+                            // Another request with this key already sent the messages
+                            return Uni.createFrom().<List<MessageEntity>>nullItem();
+
+                        return send.apply(connection)
+                            .call(sent -> connection.preparedQuery(STORE_RESULT)
+                                                    .execute(Tuple.of(requestKey, sent.size())));
+                    });
+            })
+            .chain(sent -> {
+                if(null == sent) {
+                    log.info("Send request already completed");
+                    return findAsync(requestKey);
+                }
+
+                onSent.accept(sent);
+                return Uni.createFrom().item(results.put(requestKey, sent.size()));
+            });
+    }
+
+    /***
+     * Queue a send request, unless a send request with the same key was already accepted.
+     * The key is claimed in the same transaction as the request is queued, thus concurrent
+     * requests with the same key wait for each other and only the first one is queued.
+     * @param requestKey The key of the send request, see {@link #requestKey(String, String)}
+     * @param request The send request to queue, its Id is not used
+     * @return Id of the queued request, by this or by the original request,
+     *         null if the original request was not sent in the background
+     */
+    public Uni<Long> queueOnce(String requestKey, OutboxEntity request) {
+
+        final var now = LocalDateTime.now();
+        final var expired = now.minus(messagesConfig.idempotency().ttl());
+
+        return client.withTransaction(connection -> {
+            return connection.preparedQuery(CLAIM_KEY)
+                .execute(Tuple.of(requestKey, request.senderUserId, now, expired))
+                .chain(claimed -> {
+                    if(0 == claimed.rowCount()) {
+                        // Another request with this key was already accepted
+                        log.info("Send request already queued");
+                        return connection.preparedQuery(FIND_QUEUED).execute(Tuple.of(requestKey))
+                            .onItem().transform(rows -> rows.iterator().next().getLong("outboxid"));
+                    }
+
+                    var params = Tuple.from(Arrays.asList(request.message, request.category, request.link,
+                                                          request.checkinUserId, request.process, request.role,
+                                                          request.senderUserId, request.status, request.createdOn));
+                    return connection.preparedQuery(QUEUE_REQUEST).execute(params)
+                        .onItem().transform(rows -> rows.iterator().next().getLong("id"))
+                        .call(outboxId -> connection.preparedQuery(STORE_QUEUED)
+                                                    .execute(Tuple.of(requestKey, outboxId)));
+                });
+        });
+    }
+
+    /***
+     * Remove expired results from the database.
+     * @return Completes when expired results were removed
+     */
+    @Scheduled(every = "${egi.messages.idempotency.purge-interval:1H}", // Same default as MessagesConfig.Idempotency
+               concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public Uni<Void> purgeExpired() {
+
+        var notBefore = LocalDateTime.now().minus(messagesConfig.idempotency().ttl());
+        return client.preparedQuery(PURGE_EXPIRED).execute(Tuple.of(notBefore))
+            .onItem().invoke(rows -> {
+                if(rows.rowCount() > 0)
+                    log.debugf("Removed %d expired send result(s)", rows.rowCount());
+            })
+            .replaceWithVoid()
+            .onFailure().invoke(e -> {
+                log.errorf("Failed to remove expired send results: %s", e.getMessage());
+            })
+            .onFailure().recoverWithNull();
+    }
+}
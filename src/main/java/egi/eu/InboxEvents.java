@@ -0,0 +1,232 @@
+package egi.eu;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.BackPressureStrategy;
+import io.smallrye.mutiny.subscription.MultiEmitter;
+import io.vertx.core.Vertx;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import egi.eu.entity.MessageEntity;
+import egi.eu.model.InboxEvent;
+import egi.eu.model.Message;
+
+
+/***
+ * Registry of the clients listening for changes in the inbox of a user.
+ * Events are delivered to the clients connected to this instance of the service, and published
+ * to the other instances through {@link InboxNotifications}.
+ * Call the notification methods only after the corresponding transaction was committed.
+ */
+@ApplicationScoped
+public class InboxEvents {
+
+    private static final Logger log = Logger.getLogger(InboxEvents.class);
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    UnreadCounters unreadCounters;
+
+    @Inject
+    InboxNotifications notifications;
+
+    @Inject
+    Vertx vertx;
+
+    // Connected clients, by Check-in user ID
+    private final Map<String, Set<MultiEmitter<? super InboxEvent>>> subscribers = new ConcurrentHashMap<>();
+
+
+    /***
+     * Listen for changes in the inbox of a user.
+     * Starts with the current number of unread messages, then emits new messages and unread count
+     * changes, with heartbeats in between. Fails if the client does not keep up with the events.
+     * @param checkinUserId The user to listen for
+     * @return Stream of events, ends only when cancelled
+     */
+    public Multi<InboxEvent> subscribe(String checkinUserId) {
+
+        final var push = messagesConfig.push();
+        Multi<InboxEvent> heartbeats = Multi.createFrom().ticks().every(push.heartbeat())
+            .onOverflow().drop()
+            .onItem().transform(tick -> new InboxEvent(InboxEvent.TYPE_HEARTBEAT));
+
+        return Multi.createBy().merging().streams(events(checkinUserId), heartbeats);
+    }
+
+    /***
+     * Wait until the number of unread messages of a user differs from a known count.
+     * Does not block a thread while waiting.
+     * @param checkinUserId The user to wait for
+     * @param knownUnread The number of unread messages known by the client
+     * @param timeout How long to wait at most
+     * @return Number of unread messages, equal to the known one if it did not change before the timeout
+     */
+    public Uni<Long> awaitUnreadChange(String checkinUserId, long knownUnread, Duration timeout) {
+
+        // The first event is the current count, so changes before subscribing are not missed
+        return events(checkinUserId)
+            .select().where(event -> InboxEvent.TYPE_UNREAD.equals(event.type) &&
+                                     event.unreadMessages != knownUnread)
+            .onItem().transform(event -> event.unreadMessages)
+            .toUni()
+            .ifNoItem().after(timeout).recoverWithUni(() -> unreadCounters.getAsync(checkinUserId));
+    }
+
+    /***
+     * Listen for changes in the inbox of a user, without heartbeats.
+     * @param checkinUserId The user to listen for
+     * @return Stream of events, starting with the current number of unread messages
+     */
+    private Multi<InboxEvent> events(String checkinUserId) {
+
+        final var push = messagesConfig.push();
+        return Multi.createFrom().<InboxEvent>emitter(emitter -> {
+                subscribers.compute(checkinUserId, (userId, emitters) -> {
+                    if(null == emitters)
+                        emitters = ConcurrentHashMap.newKeySet();
+                    emitters.add(emitter);
+                    return emitters;
+                });
+                emitter.onTermination(() -> unsubscribe(checkinUserId, emitter));
+
+                log.debugf("Client subscribed to inbox events, %d user(s) listening", subscribers.size());
+
+                // Start with the current count
+                unreadCounters.getAsync(checkinUserId).subscribe().with(
+                    unread -> emitter.emit(new InboxEvent(unread)),
+                    e -> log.warnf("Failed to get unread message count: %s", e.getMessage()));
+            }, BackPressureStrategy.ERROR)
+            .onOverflow().buffer(Math.max(1, push.bufferSize()));
+    }
+
+    /***
+     * Remove a client that disconnected.
+     * @param checkinUserId The user the client was listening for
+     * @param emitter The emitter of the client
+     */
+    private void unsubscribe(String checkinUserId, MultiEmitter<? super InboxEvent> emitter) {
+        subscribers.computeIfPresent(checkinUserId, (userId, emitters) -> {
+            emitters.remove(emitter);
+            return emitters.isEmpty() ? null : emitters;
+        });
+
+        log.debugf("Client unsubscribed from inbox events, %d user(s) listening", subscribers.size());
+    }
+
+    /***
+     * Check if any client is listening for changes in the inbox of a user.
+     * @param checkinUserId The user to check
+     * @return True if at least one client of the user is connected
+     */
+    public boolean hasSubscribers(String checkinUserId) {
+        return subscribers.containsKey(checkinUserId);
+    }
+
+    /***
+     * Get the users with clients connected to this instance of the service.
+     * @return Check-in user IDs
+     */
+    public Set<String> subscribedUsers() {
+        return new HashSet<>(subscribers.keySet());
+    }
+
+    /***
+     * Emit an event to all clients of a user.
+     * @param checkinUserId The user to notify
+     * @param event The event to emit
+     */
+    private void emit(String checkinUserId, InboxEvent event) {
+        var emitters = subscribers.get(checkinUserId);
+        if(null == emitters)
+            return;
+
+        for(var emitter : emitters)
+            emitter.emit(event);
+    }
+
+    /***
+     * New messages were sent.
+     * @param messages The messages that were sent, with their content
+     */
+    public void sent(Collection<MessageEntity> messages) {
+        deliverSent(messages);
+        notifications.publishSent(messages);
+    }
+
+    /***
+     * Messages were marked as read.
+     * @param checkinUserId The user who read the messages
+     */
+    public void read(String checkinUserId) {
+        deliverRead(checkinUserId);
+        notifications.publishRead(checkinUserId);
+    }
+
+    /***
+     * Messages of several users were marked as read or deleted.
+     * @param checkinUserIds The users who lost unread messages
+     */
+    public void read(Collection<String> checkinUserIds) {
+        checkinUserIds.forEach(this::deliverRead);
+        notifications.publishRead(checkinUserIds);
+    }
+
+    /***
+     * Notify the clients connected to this instance that new messages were sent.
+     * @param messages The messages that were sent, with their content
+     */
+    public void deliverSent(Collection<MessageEntity> messages) {
+        if(subscribers.isEmpty())
+            return;
+
+        var notified = new LinkedHashSet<String>();
+        for(var message : messages) {
+            if(!hasSubscribers(message.checkinUserId))
+                continue;
+
+            emit(message.checkinUserId, new InboxEvent(new Message(message)));
+            notified.add(message.checkinUserId);
+        }
+
+        for(var checkinUserId : notified)
+            unreadChanged(checkinUserId);
+    }
+
+    /***
+     * Notify the clients connected to this instance that messages were marked as read.
+     * @param checkinUserId The user who read the messages
+     */
+    public void deliverRead(String checkinUserId) {
+        unreadChanged(checkinUserId);
+    }
+
+    /***
+     * Send the number of unread messages to all clients of a user.
+     * @param checkinUserId The user whose unread count changed
+     */
+    private void unreadChanged(String checkinUserId) {
+        if(!hasSubscribers(checkinUserId))
+            return;
+
+        // Loading the count may need a database session, also when notified outside of a request
+        Utils.runOnSafeContext(vertx, () -> {
+            unreadCounters.getAsync(checkinUserId).subscribe().with(
+                unread -> emit(checkinUserId, new InboxEvent(unread)),
+                e -> log.warnf("Failed to get unread message count: %s", e.getMessage()));
+        });
+    }
+}
@@ -0,0 +1,271 @@
+package egi.eu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import io.vertx.mutiny.pgclient.PgPool;
+import io.vertx.mutiny.pgclient.pubsub.PgSubscriber;
+import io.vertx.mutiny.sqlclient.Tuple;
+import io.vertx.pgclient.PgConnectOptions;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import egi.eu.entity.MessageEntity;
+
+
+/***
+ * Exchanges inbox events between the instances of the service, using PostgreSQL LISTEN/NOTIFY.
+ * Each instance forwards the events published by the other instances to its own clients.
+ * Notifications only carry Ids, the instances load the messages of their clients themselves.
+ */
+@ApplicationScoped
+public class InboxNotifications {
+
+    private static final Logger log = Logger.getLogger(InboxNotifications.class);
+
+    public static final String TYPE_SENT = "sent";
+    public static final String TYPE_READ = "read";
+
+    private static final String NOTIFY = "SELECT pg_notify($1, $2)";
+
+    // Finds which of the specified users received some message contents
+    private static final String RECIPIENTS =
+            "SELECT DISTINCT checkinUserId FROM messages " +
+            "WHERE contentId = ANY($1::bigint[]) AND checkinUserId = ANY($2::varchar[])";
+
+    // Notification payloads are limited to 8000 bytes
+    private static final int MAX_IDS_PER_NOTIFICATION = 400;
+    private static final int MAX_USERS_PER_NOTIFICATION = 50; // Check-in user IDs are up to 120 characters
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    PgPool client;
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    Mutiny.SessionFactory sf;
+
+    @Inject
+    ObjectMapper mapper;
+
+    @Inject
+    InboxEvents inboxEvents;
+
+    @Inject
+    UnreadCounters unreadCounters;
+
+    @ConfigProperty(name = "quarkus.datasource.reactive.url")
+    String databaseUrl;
+
+    @ConfigProperty(name = "quarkus.datasource.username")
+    Optional<String> databaseUser;
+
+    @ConfigProperty(name = "quarkus.datasource.password")
+    Optional<String> databasePassword;
+
+    // Identifies this instance, so that it can ignore its own notifications
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private PgSubscriber subscriber;
+
+    /***
+     * Event published to the other instances
+     */
+    public static class Notification {
+        public String instanceId;
+        public String type;
+        public String checkinUserId; // For read events
+        public List<String> checkinUserIds; // For read events of several users
+        public List<Long> contentIds; // For sent events
+    }
+
+
+    /***
+     * Start listening for the events of the other instances.
+     * @param event The startup event
+     */
+    void onStart(@Observes StartupEvent event) {
+        final var push = messagesConfig.push();
+        if(!push.cluster())
+            return;
+
+        var options = PgConnectOptions.fromUri(databaseUrl.replaceFirst("^vertx-reactive:", ""));
+        databaseUser.ifPresent(options::setUser);
+        databasePassword.ifPresent(options::setPassword);
+
+        subscriber = PgSubscriber.subscriber(io.vertx.mutiny.core.Vertx.newInstance(vertx), options);
+        subscriber.reconnectPolicy(retries -> 1000L); // Keep trying, every second
+        subscriber.channel(push.channel()).handler(this::received);
+        subscriber.connect().subscribe().with(
+            unused -> log.infof("Listening for inbox events on channel %s", push.channel()),
+            e -> log.errorf("Cannot listen for inbox events: %s", e.getMessage()));
+    }
+
+    /***
+     * Stop listening.
+     * @param event The shutdown event
+     */
+    void onStop(@Observes ShutdownEvent event) {
+        if(null != subscriber)
+            subscriber.closeAndAwait();
+    }
+
+    /***
+     * Publish new messages to the other instances.
+     * @param messages The messages that were sent
+     */
+    public void publishSent(Collection<MessageEntity> messages) {
+        if(!messagesConfig.push().cluster() || null == messages || messages.isEmpty())
+            return;
+
+        var contentIds = messages.stream().map(m -> m.content.id).distinct().toList();
+        for(int i = 0; i < contentIds.size(); i += MAX_IDS_PER_NOTIFICATION) {
+            var notification = new Notification();
+            notification.type = TYPE_SENT;
+            notification.contentIds = contentIds.subList(i, Math.min(i + MAX_IDS_PER_NOTIFICATION, contentIds.size()));
+            publish(notification);
+        }
+    }
+
+    /***
+     * Publish to the other instances that messages were marked as read.
+     * @param checkinUserId The user who read the messages
+     */
+    public void publishRead(String checkinUserId) {
+        if(!messagesConfig.push().cluster())
+            return;
+
+        var notification = new Notification();
+        notification.type = TYPE_READ;
+        notification.checkinUserId = checkinUserId;
+        publish(notification);
+    }
+
+    /***
+     * Publish to the other instances that messages of several users were marked as read or deleted.
+     * @param checkinUserIds The users who lost unread messages
+     */
+    public void publishRead(Collection<String> checkinUserIds) {
+        if(!messagesConfig.push().cluster() || null == checkinUserIds || checkinUserIds.isEmpty())
+            return;
+
+        var users = List.copyOf(checkinUserIds);
+        for(int i = 0; i < users.size(); i += MAX_USERS_PER_NOTIFICATION) {
+            var notification = new Notification();
+            notification.type = TYPE_READ;
+            notification.checkinUserIds = users.subList(i, Math.min(i + MAX_USERS_PER_NOTIFICATION, users.size()));
+            publish(notification);
+        }
+    }
+
+    /***
+     * Send a notification to the other instances.
+     * @param notification The event to publish
+     */
+    private void publish(Notification notification) {
+        notification.instanceId = instanceId;
+
+        String payload;
+        try {
+            payload = mapper.writeValueAsString(notification);
+        }
+        catch(JsonProcessingException e) {
+            log.errorf("Cannot serialize inbox event: %s", e.getMessage());
+            return;
+        }
+
+        client.preparedQuery(NOTIFY).execute(Tuple.of(messagesConfig.push().channel(), payload))
+            .subscribe().with(
+                unused -> {},
+                e -> log.warnf("Failed to publish inbox event: %s", e.getMessage()));
+    }
+
+    /***
+     * Forward an event published by another instance to the local clients.
+     * @param payload The notification payload
+     */
+    private void received(String payload) {
+        Notification notification;
+        try {
+            notification = mapper.readValue(payload, Notification.class);
+        }
+        catch(JsonProcessingException e) {
+            log.warnf("Ignoring invalid inbox event: %s", e.getMessage());
+            return;
+        }
+
+        if(instanceId.equals(notification.instanceId))
+            // Already delivered locally
+            return;
+
+        if(TYPE_READ.equals(notification.type)) {
+            var users = new ArrayList<String>();
+            if(null != notification.checkinUserId)
+                users.add(notification.checkinUserId);
+            if(null != notification.checkinUserIds)
+                users.addAll(notification.checkinUserIds);
+
+            // Our cached counts are stale
+            for(var checkinUserId : users) {
+                unreadCounters.invalidate(checkinUserId);
+                inboxEvents.deliverRead(checkinUserId);
+            }
+        }
+        else if(TYPE_SENT.equals(notification.type) && null != notification.contentIds) {
+            if(notification.contentIds.isEmpty())
+                return;
+
+            // Only the users with cached counts or connected clients are affected
+            var subscribedUsers = inboxEvents.subscribedUsers();
+            var localUsers = new HashSet<>(subscribedUsers);
+            localUsers.addAll(unreadCounters.cachedUsers());
+            if(localUsers.isEmpty())
+                return;
+
+            var params = Tuple.of(notification.contentIds.toArray(Long[]::new),
+                                  localUsers.toArray(String[]::new));
+            client.preparedQuery(RECIPIENTS).execute(params)
+                .chain(rows -> {
+                    var recipients = new ArrayList<String>();
+                    rows.forEach(row -> recipients.add(row.getString(0)));
+
+                    // Our cached counts of these recipients are stale
+                    recipients.forEach(unreadCounters::invalidate);
+
+                    // Load the messages of our clients, to push them
+                    var pushTo = recipients.stream().filter(subscribedUsers::contains).toList();
+                    if(pushTo.isEmpty())
+                        return Uni.createFrom().item(List.<MessageEntity>of());
+
+                    return Uni.createFrom().<List<MessageEntity>>emitter(emitter -> {
+                        Utils.runOnSafeContext(vertx, () -> {
+                            sf.withSession(session -> MessageEntity.getDeliveries(notification.contentIds, pushTo))
+                                .subscribe().with(emitter::complete, emitter::fail);
+                        });
+                    });
+                })
+                .subscribe().with(
+                    inboxEvents::deliverSent,
+                    e -> log.warnf("Failed to load messages of inbox event: %s", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package egi.eu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.security.identity.IdentityProviderManager;
+import io.quarkus.vertx.http.runtime.security.QuarkusHttpUser;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.operators.multi.processors.UnicastProcessor;
+import io.smallrye.mutiny.subscription.Cancellable;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import egi.checkin.model.CheckinUser;
+import egi.eu.entity.InboxStatsEntity;
+import egi.eu.entity.MessageEntity;
+import egi.eu.model.InboxAck;
+import egi.eu.model.InboxEvent;
+
+
+/***
+ * WebSocket channel to the inbox of the caller.
+ * On connect, sends the unread count and the latest messages, then pushes new messages as they arrive.
+ * Clients acknowledge messages they read over the same socket, acks are applied in batches.
+ * Access is restricted to IMS users by the HTTP permissions of the upgrade request.
+ */
+@ApplicationScoped
+public class InboxSocket {
+
+    private static final Logger log = Logger.getLogger(InboxSocket.class);
+
+    public static final String PATH = "/messages/inbox";
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    Mutiny.SessionFactory sf;
+
+    @Inject
+    MessageWriter writer;
+
+    @Inject
+    InboxEvents inboxEvents;
+
+    @Inject
+    IdentityProviderManager identityProviderManager;
+
+    @Inject
+    ObjectMapper mapper;
+
+    @Inject
+    Vertx vertx;
+
+
+    /***
+     * Register the route that upgrades requests to the inbox socket.
+     * @param router The HTTP router
+     */
+    void register(@Observes Router router) {
+        router.get(PATH).handler(this::upgrade);
+    }
+
+    /***
+     * Upgrade the request of an authenticated user to a WebSocket.
+     * @param ctx The upgrade request
+     */
+    private void upgrade(RoutingContext ctx) {
+        QuarkusHttpUser.getSecurityIdentity(ctx, identityProviderManager)
+            .subscribe().with(identity -> {
+                if(null == identity || identity.isAnonymous()) {
+                    ctx.response().setStatusCode(401).end();
+                    return;
+                }
+
+                final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+                ctx.request().toWebSocket()
+                    .onSuccess(socket -> open(socket, checkinUserId))
+                    .onFailure(e -> log.warnf("Failed to open inbox socket: %s", e.getMessage()));
+            }, ctx::fail);
+    }
+
+    /***
+     * Client connected, start pushing changes of the inbox.
+     * Messages sent while the latest messages are loaded may be sent twice, clients should
+     * merge messages by their Id.
+     * @param socket The socket of the client
+     * @param checkinUserId The user who connected
+     */
+    private void open(ServerWebSocket socket, String checkinUserId) {
+        final var push = messagesConfig.push();
+
+        log.debug("Inbox socket connected");
+
+        // Apply acks in batches
+        var pending = UnicastProcessor.<Long>create();
+        pending.group().intoLists().of(Math.max(1, push.ackBatchSize()), push.ackDelay())
+            .onItem().transformToUniAndConcatenate(messageIds -> {
+                return writer.markRead(checkinUserId, messageIds)
+                    .onFailure().invoke(e -> log.errorf("Failed to apply read acks: %s", e.getMessage()))
+                    .onFailure().recoverWithNull();
+            })
+            .subscribe().with(outcomes -> {});
+
+        socket.textMessageHandler(text -> onAck(text, pending));
+
+        // Client disconnected, stop pushing and apply the remaining acks
+        final var subscription = new AtomicReference<Cancellable>();
+        socket.closeHandler(unused -> {
+            var events = subscription.getAndSet(() -> {});
+            if(null != events)
+                events.cancel();
+            pending.onComplete();
+
+            log.debug("Inbox socket disconnected");
+        });
+
+        // Send the latest messages, while already listening for new ones
+        Multi<InboxEvent> latest = Multi.createFrom().deferred(() -> sf.withSession(session -> { return
+                InboxStatsEntity.getLastReadAllAt(checkinUserId)
+                .chain(readAllAt -> {
+                    return MessageEntity.getMessages(checkinUserId, null, push.pageSize())
+                        .onItem().transform(messages -> {
+                            messages.forEach(m -> m.readBefore(readAllAt));
+                            return messages;
+                        });
+                });
+            })
+            .onItem().transform(InboxEvent::new)
+            .toMulti());
+
+        // Loading the latest messages needs a database session
+        Utils.runOnSafeContext(vertx, () -> {
+            var events = Multi.createBy().merging().streams(latest, inboxEvents.subscribe(checkinUserId))
+                .subscribe().with(
+                    event -> send(socket, event),
+                    e -> {
+                        // Client did not keep up with the events, it is expected to reconnect
+                        log.debugf("Closing inbox socket: %s", e.getMessage());
+                        socket.close();
+                    });
+
+            if(!subscription.compareAndSet(null, events))
+                events.cancel(); // Already disconnected
+        });
+    }
+
+    /***
+     * Send an event to the client, close the socket if the client does not keep up.
+     * @param socket The socket of the client
+     * @param event The event to send
+     */
+    private void send(ServerWebSocket socket, InboxEvent event) {
+        if(socket.isClosed())
+            return;
+
+        if(socket.writeQueueFull()) {
+            log.debug("Closing inbox socket of slow client");
+            socket.close();
+            return;
+        }
+
+        try {
+            socket.writeTextMessage(mapper.writeValueAsString(event));
+        }
+        catch(JsonProcessingException e) {
+            log.errorf("Failed to serialize inbox event: %s", e.getMessage());
+        }
+    }
+
+    /***
+     * Client acknowledged messages it read.
+     * @param text The acknowledgement, an {@link InboxAck} as JSON
+     * @param pending The pending acks of the client
+     */
+    private void onAck(String text, UnicastProcessor<Long> pending) {
+        InboxAck ack;
+        try {
+            ack = mapper.readValue(text, InboxAck.class);
+        }
+        catch(JsonProcessingException e) {
+            log.warnf("Ignoring invalid read ack: %s", e.getMessage());
+            return;
+        }
+
+        if(null == ack || null == ack.read)
+            return;
+
+        for(var messageId : ack.read)
+            if(null != messageId)
+                pending.onNext(messageId);
+    }
+}
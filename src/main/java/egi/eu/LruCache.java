@@ -0,0 +1,153 @@
+package egi.eu;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+
+/***
+ * Thread safe cache with bounded size, evicts the least recently used entries.
+ * Entries can optionally expire after a time to live.
+ */
+public class LruCache<K, V> {
+
+    private final int maxSize;
+    private final long ttl; // Milliseconds, 0 means entries do not expire
+    private final LongSupplier clock; // Current time in milliseconds
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /***
+     * Cached value and the time it was stored
+     */
+    private record Entry<V>(V value, long storedAt) {}
+
+
+    /***
+     * Construct cache with entries that do not expire
+     * @param maxSize Maximum number of entries
+     */
+    public LruCache(int maxSize) {
+        this(maxSize, Duration.ZERO);
+    }
+
+    /***
+     * Construct cache with entries that expire
+     * @param maxSize Maximum number of entries
+     * @param ttl How long entries are valid, zero for no expiration
+     */
+    public LruCache(int maxSize, Duration ttl) {
+        this(maxSize, ttl, System::currentTimeMillis);
+    }
+
+    /***
+     * Construct cache with entries that expire, measuring time with the specified clock
+     * @param maxSize Maximum number of entries
+     * @param ttl How long entries are valid, zero for no expiration
+     * @param clock Supplies the current time in milliseconds
+     */
+    public LruCache(int maxSize, Duration ttl, LongSupplier clock) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttl = null != ttl ? ttl.toMillis() : 0;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > LruCache.this.maxSize;
+            }
+        };
+    }
+
+    /***
+     * Check if an entry has expired
+     * @param entry The entry to check
+     * @return True if the entry is no longer valid
+     */
+    private boolean expired(Entry<V> entry) {
+        return ttl > 0 && entry.storedAt() + ttl < clock.getAsLong();
+    }
+
+    /***
+     * Get cached value
+     * @param key The key of the value
+     * @return Cached value, null if not cached or expired
+     */
+    public synchronized V get(K key) {
+        var entry = entries.get(key);
+        if(null == entry)
+            return null;
+
+        if(expired(entry)) {
+            entries.remove(key);
+            return null;
+        }
+
+        return entry.value();
+    }
+
+    /***
+     * Store value in the cache
+     * @param key The key of the value
+     * @param value The value to store
+     * @return The stored value
+     */
+    public synchronized V put(K key, V value) {
+        entries.put(key, new Entry<>(value, clock.getAsLong()));
+        return value;
+    }
+
+    /***
+     * Update cached value, only if it is cached.
+     * @param key The key of the value
+     * @param update Calculates the new value from the key and the cached value,
+     *               return null to remove the value from the cache
+     * @return The new value, null if not cached
+     */
+    public synchronized V update(K key, BiFunction<K, V, V> update) {
+        var value = get(key);
+        if(null == value)
+            return null;
+
+        var newValue = update.apply(key, value);
+        if(null == newValue)
+            entries.remove(key);
+        else
+            entries.put(key, new Entry<>(newValue, entries.get(key).storedAt()));
+
+        return newValue;
+    }
+
+    /***
+     * Remove value from the cache
+     * @param key The key of the value
+     */
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    /***
+     * Remove all values from the cache
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /***
+     * Get the keys of the cached values
+     * @return Copy of the keys, including expired ones not yet removed
+     */
+    public synchronized Set<K> keys() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /***
+     * Get number of cached values
+     * @return Number of entries, including expired ones not yet removed
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
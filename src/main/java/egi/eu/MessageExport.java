@@ -0,0 +1,61 @@
+package egi.eu;
+
+import io.smallrye.mutiny.Multi;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicReference;
+
+import egi.eu.entity.MessageEntity;
+import egi.eu.model.Message;
+import egi.eu.model.MessageCursor;
+
+
+/***
+ * Exports all messages of a user, reading them in chunks using keyset pagination.
+ * Only one chunk of messages is held in memory at a time, no matter how many messages the user has.
+ */
+@ApplicationScoped
+public class MessageExport {
+
+    private static final Logger log = Logger.getLogger(MessageExport.class);
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    Mutiny.SessionFactory sf;
+
+
+    /***
+     * Export the messages of a user.
+     * Each chunk is read with its own short query when the subscriber requests it, so slow clients
+     * neither cause buffering nor hold a database connection while they read.
+     * @param checkinUserId The user whose messages to export
+     * @param readAllAt Read watermark of the user, messages sent at or before it are read, can be null
+     * @return Messages in reverse chronological order
+     */
+    public Multi<Message> export(String checkinUserId, LocalDateTime readAllAt) {
+
+        final int chunkSize = Math.max(1, messagesConfig.exportFetchSize());
+        final var after = new AtomicReference<MessageCursor>();
+
+        return Multi.createBy().repeating()
+            .uni(() -> {
+                // Read the chunk after the last exported message
+                return sf.withSession(session -> MessageEntity.getMessages(checkinUserId, after.get(), chunkSize))
+                    .onItem().invoke(chunk -> {
+                        log.debugf("Exporting %d messages", chunk.size());
+                        if(!chunk.isEmpty())
+                            after.set(new MessageCursor(chunk.get(chunk.size() - 1)));
+                    });
+            })
+            .whilst(chunk -> chunk.size() == chunkSize)
+            .onItem().transformToIterable(chunk -> chunk)
+            .onItem().transform(message -> message.readBefore(readAllAt));
+    }
+}
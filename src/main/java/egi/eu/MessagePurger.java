@@ -0,0 +1,403 @@
+package egi.eu;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.pgclient.PgPool;
+import io.vertx.mutiny.sqlclient.Tuple;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+
+/***
+ * Deletes the messages that are past their retention, in the background.
+ * Messages are deleted in small batches, each in its own short transaction, walking an index
+ * with keyset pagination, so that purging never holds locks for long nor writes large transactions.
+ */
+@ApplicationScoped
+public class MessagePurger {
+
+    private static final Logger log = Logger.getLogger(MessagePurger.class);
+
+    private static final String REASON_AGE = "age";
+    private static final String REASON_LIMIT = "limit";
+
+    // Oldest messages in some categories
+    private static final String AGE_IN_CATEGORIES =
+            "SELECT m.id FROM messages m JOIN message_contents c ON c.id = m.contentId " +
+            "WHERE m.sentOn < $2 AND c.category = ANY($3::varchar[]) ";
+
+    // Oldest messages in the categories without their own retention
+    private static final String AGE_IN_OTHER_CATEGORIES =
+            "SELECT m.id FROM messages m JOIN message_contents c ON c.id = m.contentId " +
+            "WHERE m.sentOn < $2 AND (c.category IS NULL OR NOT (c.category = ANY($3::varchar[]))) ";
+
+    // The oldest of the newest messages of a user, which are kept
+    private static final String OLDEST_KEPT =
+            "SELECT m.sentOn, m.id FROM messages m WHERE m.checkinUserId = $1 " +
+            "ORDER BY m.sentOn DESC, m.id DESC OFFSET $2 LIMIT 1";
+
+    // Messages of a user older than the oldest one to keep
+    private static final String OVER_LIMIT =
+            "SELECT m.id FROM messages m WHERE m.checkinUserId = $2 AND (m.sentOn, m.id) < ($3, $4) ";
+
+    // Users who may have more messages than allowed
+    private static final String USERS_OVER_LIMIT =
+            "SELECT checkinUserId FROM user_inbox_stats WHERE total > $1 AND checkinUserId > $2 " +
+            "ORDER BY checkinUserId LIMIT $3";
+
+    // Deletes message contents that are no longer delivered to anyone
+    private static final String DELETE_ORPHANS =
+            "DELETE FROM message_contents c WHERE c.id = ANY($1::bigint[]) " +
+            "AND NOT EXISTS (SELECT 1 FROM messages m WHERE m.contentId = c.id)";
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    PgPool client;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    UnreadCounters unreadCounters;
+
+    @Inject
+    InboxEvents inboxEvents;
+
+    /***
+     * Outcome of deleting a batch of messages
+     * @param deleted Number of deleted messages
+     * @param lastSentOn When the last deleted message was sent, null if none deleted
+     * @param lastId The Id of the last deleted message, null if none deleted
+     * @param unreadUsers The users who lost unread messages
+     */
+    private record Batch(int deleted, LocalDateTime lastSentOn, Long lastId, Set<String> unreadUsers) {}
+
+
+    /***
+     * Build the condition that continues after the last deleted message,
+     * without rescanning the index entries of deleted rows.
+     * @param param Number of the parameter with the sentOn of the last message, the next one is its Id
+     * @return Condition to append to a select statement
+     */
+    private static String afterLast(int param) {
+        return "AND (m.sentOn, m.id) > ($" + param + ", $" + (param + 1) + ") ";
+    }
+
+    /***
+     * Build the ordering of a select statement that selects the oldest messages first,
+     * skipping those another instance is already deleting.
+     * @param limitParam Number of the parameter with the batch size
+     * @return Ordering to append to a select statement
+     */
+    private static String oldestFirst(int limitParam) {
+        return "ORDER BY m.sentOn, m.id LIMIT $" + limitParam + " FOR UPDATE OF m SKIP LOCKED";
+    }
+
+    /***
+     * Build a statement that deletes a batch of messages and removes them from the counters of their
+     * recipients. Counters are locked in a consistent order, so that concurrent sends cannot deadlock.
+     * Parameter $1 is the current time.
+     * @param batch Selects the Ids of the messages to delete
+     * @return Statement returning the deleted messages, and whether they were unread
+     */
+    private static String purgeStatement(String batch) {
+        return "WITH batch AS (" + batch + "), " +
+                    "deleted AS (DELETE FROM messages m USING batch b WHERE m.id = b.id " +
+                                "RETURNING m.id, m.contentId, m.checkinUserId, m.wasRead, m.sentOn), " +
+                    // Matches MessageEntity.UNREAD
+                    "flagged AS (SELECT d.id, d.contentId, d.checkinUserId, d.sentOn, " +
+                                "(d.wasRead = false AND NOT EXISTS (SELECT 1 FROM user_inbox_stats s " +
+                                    "WHERE s.checkinUserId = d.checkinUserId AND s.lastReadAllAt >= d.sentOn)) AS unread " +
+                                "FROM deleted d), " +
+                    "counts AS (SELECT checkinUserId, COUNT(*) AS total, COUNT(*) FILTER (WHERE unread) AS unread " +
+                               "FROM flagged GROUP BY checkinUserId), " +
+                    "locked AS (SELECT s.checkinUserId FROM user_inbox_stats s " +
+                               "JOIN counts c ON c.checkinUserId = s.checkinUserId " +
+                               "ORDER BY s.checkinUserId FOR UPDATE OF s), " +
+                    "updated AS (UPDATE user_inbox_stats s SET total = GREATEST(0, s.total - c.total), " +
+                                "unread = GREATEST(0, s.unread - c.unread), " +
+                                "revision = COALESCE(s.revision, 0) + 1, changedOn = $1 " +
+                                "FROM counts c, locked l " +
+                                "WHERE s.checkinUserId = c.checkinUserId AND l.checkinUserId = c.checkinUserId) " +
+               "SELECT id, contentId, checkinUserId, sentOn, unread FROM flagged";
+    }
+
+    /***
+     * Delete the messages that are past their retention.
+     * @return Completes when all messages past their retention were deleted
+     */
+    @Scheduled(every = "${egi.messages.retention.interval:1H}", // Same default as MessagesConfig.Retention
+               concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public Uni<Void> purge() {
+
+        final var retention = messagesConfig.retention();
+        if(!retention.enabled())
+            return Uni.createFrom().voidItem();
+
+        final var now = LocalDateTime.now();
+        final var categories = retention.categoryMaxAge();
+        final var sample = Timer.start(registry);
+
+        // The users who lost unread messages, their clients are notified once at the end
+        final Set<String> unreadUsers = ConcurrentHashMap.newKeySet();
+
+        // Messages in categories with their own retention
+        List<Supplier<Uni<Long>>> steps = new ArrayList<>();
+        for(var category : categories.entrySet()) {
+            if(keepForever(category.getValue()))
+                continue;
+
+            steps.add(() -> purgeByAge(AGE_IN_CATEGORIES, now, now.minus(category.getValue()),
+                                         new String[] { category.getKey() }, unreadUsers));
+        }
+
+        // Messages in all other categories
+        if(retention.maxAge().isPresent() && !keepForever(retention.maxAge().get())) {
+            final var others = categories.keySet().toArray(new String[0]);
+            steps.add(() -> purgeByAge(AGE_IN_OTHER_CATEGORIES, now, now.minus(retention.maxAge().get()), others,
+                                         unreadUsers));
+        }
+
+        // Messages beyond the limit per user
+        if(retention.maxMessagesPerUser() > 0)
+            steps.add(() -> purgeOverLimit(now, retention.maxMessagesPerUser(), unreadUsers));
+
+        return Multi.createFrom().iterable(steps)
+            .onItem().transformToUniAndConcatenate(Supplier::get)
+            .collect().with(Collectors.summingLong(Long::longValue))
+            .onItem().invoke(purged -> {
+                if(purged > 0)
+                    log.infof("Purged %d message(s)", purged);
+            })
+            .onFailure().invoke(e -> {
+                log.errorf("Failed to purge messages: %s", e.getMessage());
+            })
+            .onTermination().invoke(() -> {
+                sample.stop(registry.timer("messages.purge.duration"));
+
+                // Also after a failure, for the batches that were committed
+                if(!unreadUsers.isEmpty())
+                    inboxEvents.read(unreadUsers);
+            })
+            .replaceWithVoid()
+            .onFailure().recoverWithNull();
+    }
+
+    /***
+     * Check if a retention means that messages are never deleted.
+     * @param maxAge The maximum age of messages
+     * @return True to keep messages forever
+     */
+    private static boolean keepForever(Duration maxAge) {
+        return null == maxAge || maxAge.isZero() || maxAge.isNegative();
+    }
+
+    /***
+     * Delete the messages sent before a cutoff, oldest first.
+     * @param select Selects the messages to delete, see {@link #AGE_IN_CATEGORIES}
+     * @param now The current time
+     * @param cutoff Messages sent before this are deleted
+     * @param categories The categories to pass to the select statement
+     * @param unreadUsers Collects the users who lost unread messages
+     * @return Number of deleted messages
+     */
+    private Uni<Long> purgeByAge(String select, LocalDateTime now, LocalDateTime cutoff, String[] categories,
+                                 Set<String> unreadUsers) {
+
+        final int batchSize = Math.max(1, messagesConfig.retention().batchSize());
+        final var first = purgeStatement(select + oldestFirst(4));
+        final var next = purgeStatement(select + afterLast(5) + oldestFirst(4));
+
+        return purgeInBatches(first, next, batchSize, unreadUsers, () -> {
+                return Tuple.tuple()
+                        .addLocalDateTime(now)
+                        .addLocalDateTime(cutoff)
+                        .addArrayOfString(categories)
+                        .addInteger(batchSize);
+            })
+            .onItem().invoke(purged -> {
+                registry.counter("messages.purged", "reason", REASON_AGE).increment(purged);
+            });
+    }
+
+    /***
+     * Delete the oldest messages of the users who have more messages than allowed.
+     * @param now The current time
+     * @param maxMessages The number of messages to keep for each user
+     * @param unreadUsers Collects the users who lost unread messages
+     * @return Number of deleted messages
+     */
+    private Uni<Long> purgeOverLimit(LocalDateTime now, int maxMessages, Set<String> unreadUsers) {
+
+        final int batchSize = Math.max(1, messagesConfig.retention().batchSize());
+
+        // Go through the users in pages, continuing after the last user of the previous page
+        final var lastUser = new String[] { "" };
+        return Multi.createBy().repeating()
+            .uni(() -> {
+                return client.preparedQuery(USERS_OVER_LIMIT).execute(Tuple.of(maxMessages, lastUser[0], batchSize))
+                    .chain(rows -> {
+                        List<String> users = new ArrayList<>();
+                        rows.forEach(row -> users.add(row.getString("checkinuserid")));
+                        if(!users.isEmpty())
+                            lastUser[0] = users.get(users.size() - 1);
+
+                        return Multi.createFrom().iterable(users)
+                            .onItem().transformToUniAndConcatenate(checkinUserId -> {
+                                return purgeUser(checkinUserId, now, maxMessages, batchSize, unreadUsers);
+                            })
+                            .collect().with(Collectors.summingLong(Long::longValue))
+                            .onItem().transform(purged -> new long[] { users.size(), purged });
+                    });
+            })
+            .whilst(page -> page[0] >= batchSize)
+            .collect().with(Collectors.summingLong((long[] page) -> page[1]))
+            .onItem().invoke(purged -> {
+                registry.counter("messages.purged", "reason", REASON_LIMIT).increment(purged);
+            });
+    }
+
+    /***
+     * Delete the oldest messages of a user who has more messages than allowed.
+     * The newest messages to keep are only skipped once, to find the oldest of them,
+     * then the older messages are deleted oldest first.
+     * @param checkinUserId The user whose messages to delete
+     * @param now The current time
+     * @param maxMessages The number of messages to keep
+     * @param batchSize The number of messages to delete in each transaction
+     * @param unreadUsers Collects the users who lost unread messages
+     * @return Number of deleted messages
+     */
+    private Uni<Long> purgeUser(String checkinUserId, LocalDateTime now, int maxMessages, int batchSize,
+                                Set<String> unreadUsers) {
+
+        final var first = purgeStatement(OVER_LIMIT + oldestFirst(5));
+        final var next = purgeStatement(OVER_LIMIT + afterLast(6) + oldestFirst(5));
+
+        return client.preparedQuery(OLDEST_KEPT).execute(Tuple.of(checkinUserId, maxMessages - 1))
+            .chain(rows -> {
+                var kept = rows.iterator();
+                if(!kept.hasNext())
+                    // Not over the limit after all
+                    return Uni.createFrom().item(0L);
+
+                var oldestKept = kept.next();
+                final var keptSentOn = oldestKept.getLocalDateTime("senton");
+                final var keptId = oldestKept.getLong("id");
+                return purgeInBatches(first, next, batchSize, unreadUsers, () -> {
+                    return Tuple.tuple()
+                            .addLocalDateTime(now)
+                            .addString(checkinUserId)
+                            .addLocalDateTime(keptSentOn)
+                            .addLong(keptId)
+                            .addInteger(batchSize);
+                });
+            });
+    }
+
+    /***
+     * Delete messages in batches, oldest first, until a batch is not full.
+     * @param first Deletes the first batch, see {@link #purgeStatement(String)}
+     * @param next Deletes the next batches, continuing after the last deleted message,
+     *             whose sentOn and Id are appended to the parameters
+     * @param batchSize The number of messages to delete in each transaction
+     * @param unreadUsers Collects the users who lost unread messages
+     * @param params Supplies the parameters of the statements
+     * @return Number of deleted messages
+     */
+    private Uni<Long> purgeInBatches(String first, String next, int batchSize, Set<String> unreadUsers,
+                                     Supplier<Tuple> params) {
+
+        final var last = new Batch[] { null };
+        return Multi.createBy().repeating()
+            .uni(() -> {
+                var previous = last[0];
+                var tuple = params.get();
+                if(null != previous)
+                    tuple.addLocalDateTime(previous.lastSentOn()).addLong(previous.lastId());
+
+                return deleteBatch(null == previous ? first : next, tuple, unreadUsers)
+                        .onItem().invoke(batch -> last[0] = batch);
+            })
+            .whilst(batch -> batch.deleted() >= batchSize)
+            .collect().with(Collectors.summingLong(Batch::deleted));
+    }
+
+    /***
+     * Delete a batch of messages in a transaction, together with their contents if no longer delivered
+     * to anyone. After the transaction is committed, the cached unread counts of the recipients are dropped.
+     * @param statement Deletes the batch, see {@link #purgeStatement(String)}
+     * @param params The parameters of the statement
+     * @param unreadUsers Collects the users who lost unread messages
+     * @return Outcome of the batch
+     */
+    private Uni<Batch> deleteBatch(String statement, Tuple params, Set<String> unreadUsers) {
+
+        return client.withTransaction(connection -> {
+                return connection.preparedQuery(statement).execute(params)
+                    .chain(rows -> {
+                        int deleted = 0;
+                        LocalDateTime lastSentOn = null;
+                        Long lastId = null;
+                        Set<Long> contentIds = new HashSet<>();
+                        Set<String> batchUnreadUsers = new HashSet<>();
+                        for(var row : rows) {
+                            deleted++;
+                            contentIds.add(row.getLong("contentid"));
+                            if(Boolean.TRUE.equals(row.getBoolean("unread")))
+                                batchUnreadUsers.add(row.getString("checkinuserid"));
+
+                            // Remember the position of the last message, in (sentOn, id) order
+                            var sentOn = row.getLocalDateTime("senton");
+                            var id = row.getLong("id");
+                            if(null == lastSentOn || sentOn.isAfter(lastSentOn) ||
+                               (sentOn.isEqual(lastSentOn) && id > lastId)) {
+                                lastSentOn = sentOn;
+                                lastId = id;
+                            }
+                        }
+
+                        var batch = new Batch(deleted, lastSentOn, lastId, batchUnreadUsers);
+                        if(contentIds.isEmpty())
+                            return Uni.createFrom().item(batch);
+
+                        return connection.preparedQuery(DELETE_ORPHANS)
+                                         .execute(Tuple.tuple().addArrayOfLong(contentIds.toArray(new Long[0])))
+                                         .replaceWith(batch);
+                    });
+            })
+            .onItem().invoke(batch -> {
+                log.debugf("Deleted %d message(s)", batch.deleted());
+
+                // Our cached counts are stale, the other instances and the clients
+                // are notified once all batches were deleted
+                batch.unreadUsers().forEach(unreadCounters::invalidate);
+                unreadUsers.addAll(batch.unreadUsers());
+            })
+            .call(batch -> {
+                // Leave room for other work between batches
+                var pause = messagesConfig.retention().batchPause();
+                if(batch.deleted() == 0 || pause.isZero())
+                    return Uni.createFrom().voidItem();
+
+                return Uni.createFrom().voidItem().onItem().delayIt().by(pause);
+            });
+    }
+}
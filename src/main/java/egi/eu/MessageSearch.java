@@ -0,0 +1,95 @@
+package egi.eu;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.pgclient.PgPool;
+import io.vertx.mutiny.sqlclient.Row;
+import io.vertx.mutiny.sqlclient.Tuple;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import egi.eu.model.Message;
+import egi.eu.model.SearchCursor;
+
+
+/***
+ * Full-text search over the messages of a user.
+ * Uses the generated tsvector column of the message contents and its GIN index.
+ */
+@ApplicationScoped
+public class MessageSearch {
+
+    private static final Logger log = Logger.getLogger(MessageSearch.class);
+
+    // Matches the messages of a user, ranked by relevance. Must use the same
+    // text search configuration as the generated column message_contents.search
+    private static final String MATCHES =
+            "WITH matches AS (" +
+                "SELECT m.id, c.message, c.category, c.link, m.wasRead, m.sentOn, " +
+                       "ts_rank(c.search, q.query) AS rank " +
+                "FROM websearch_to_tsquery('english', $2) AS q(query), messages m " +
+                "JOIN message_contents c ON c.id = m.contentId " +
+                "WHERE m.checkinUserId = $1 AND c.search @@ q.query) " +
+            "SELECT * FROM matches ";
+
+    private static final String SEARCH =
+            MATCHES + "ORDER BY rank DESC, id DESC LIMIT $3";
+
+    // Continues after the last returned message
+    private static final String SEARCH_AFTER =
+            MATCHES + "WHERE (rank, id) < ($4::real, $5) ORDER BY rank DESC, id DESC LIMIT $3";
+
+    @Inject
+    PgPool client;
+
+
+    /***
+     * Page of search results
+     */
+    public static class Results {
+        public List<Message> messages = new ArrayList<>();
+
+        // Position of the last returned message, null when there are no more results
+        public SearchCursor next;
+    }
+
+
+    /***
+     * Search the messages of a user.
+     * @param checkinUserId The user whose messages to search
+     * @param query The search terms, supports quoted phrases, "or" and "-" to exclude terms
+     * @param after The position after which to continue, null to start with the best match
+     * @param limit The maximum number of messages to return
+     * @return Matching messages, most relevant first, their read flag does not consider the read watermark
+     */
+    public Uni<Results> search(String checkinUserId, String query, SearchCursor after, int limit) {
+
+        var select = null != after ?
+                client.preparedQuery(SEARCH_AFTER).execute(Tuple.of(checkinUserId, query, limit, after.rank, after.id)) :
+                client.preparedQuery(SEARCH).execute(Tuple.of(checkinUserId, query, limit));
+
+        return select.onItem().transform(rows -> {
+            var results = new Results();
+            Row last = null;
+            for(var row : rows) {
+                results.messages.add(new Message(row.getLong("id"),
+                                                 row.getString("message"),
+                                                 row.getString("category"),
+                                                 row.getString("link"),
+                                                 row.getBoolean("wasread"),
+                                                 row.getLocalDateTime("senton")));
+                last = row;
+            }
+
+            if(null != last && results.messages.size() == limit)
+                results.next = new SearchCursor(last.getFloat("rank"), last.getLong("id"));
+
+            log.debugf("Found %d message(s)", results.messages.size());
+            return results;
+        });
+    }
+}
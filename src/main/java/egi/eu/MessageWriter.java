@@ -0,0 +1,384 @@
+package egi.eu;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.pgclient.PgPool;
+import io.vertx.mutiny.sqlclient.SqlConnection;
+import io.vertx.mutiny.sqlclient.Tuple;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import egi.eu.entity.MessageContentEntity;
+import egi.eu.entity.MessageEntity;
+import egi.eu.model.Message;
+import egi.eu.model.ReadStatus;
+
+
+/***
+ * Writes notification messages to the database, fanning out to many recipients with few statements.
+ * The content of a message is stored once, each recipient only gets a lightweight delivery row.
+ */
+@ApplicationScoped
+public class MessageWriter {
+
+    private static final Logger log = Logger.getLogger(MessageWriter.class);
+
+    // Inserts the content of a message
+    private static final String INSERT_CONTENT =
+            "INSERT INTO message_contents (message, category, link, sentOn) VALUES ($1, $2, $3, $4) RETURNING id";
+
+    // Inserts one delivery row per recipient from an array parameter
+    private static final String INSERT_DELIVERIES =
+            "INSERT INTO messages (contentId, checkinUserId, wasRead, sentOn, changedOn) " +
+            "SELECT $1, recipient, false, $2, $2 FROM UNNEST($3::varchar[]) AS recipient " +
+            "RETURNING id, checkinUserId";
+
+    // Creates the missing counters of recipients, from the messages they already have
+    private static final String CREATE_STATS =
+            "INSERT INTO user_inbox_stats (checkinUserId, unread, total, revision, changedOn) " +
+            "SELECT r.recipient, " +
+                   "(SELECT COUNT(*) FROM messages m WHERE m.checkinUserId = r.recipient AND m.wasRead = false), " +
+                   "(SELECT COUNT(*) FROM messages m WHERE m.checkinUserId = r.recipient), 0, $2 " +
+            "FROM (SELECT DISTINCT recipient FROM UNNEST($1::varchar[]) AS recipient) AS r " +
+            "WHERE NOT EXISTS (SELECT 1 FROM user_inbox_stats s WHERE s.checkinUserId = r.recipient) " +
+            "ORDER BY r.recipient " +
+            "ON CONFLICT (checkinUserId) DO NOTHING";
+
+    // Adds new messages to the counters of their recipients.
+    // Counters are locked in a consistent order, so that concurrent sends cannot deadlock.
+    // This only holds across statements if they are called with recipients in the same order.
+    private static final String UPDATE_STATS =
+            "WITH added AS (SELECT recipient, COUNT(*) AS count FROM UNNEST($1::varchar[]) AS recipient " +
+                           "GROUP BY recipient), " +
+                 "locked AS (SELECT s.checkinUserId FROM user_inbox_stats s " +
+                            "JOIN added a ON a.recipient = s.checkinUserId " +
+                            "ORDER BY s.checkinUserId FOR UPDATE OF s) " +
+            "UPDATE user_inbox_stats s SET unread = s.unread + a.count, total = s.total + a.count, " +
+                                          "revision = COALESCE(s.revision, 0) + 1, changedOn = $2 " +
+            "FROM added a, locked l WHERE s.checkinUserId = a.recipient AND l.checkinUserId = a.recipient";
+
+    // Locks the counters of recipients in a consistent order
+    private static final String LOCK_STATS =
+            "SELECT checkinUserId FROM user_inbox_stats WHERE checkinUserId = ANY($1::varchar[]) " +
+            "ORDER BY checkinUserId FOR UPDATE";
+
+    // Inserts one delivery row per element of the array parameters
+    private static final String INSERT_DELIVERY_ROWS =
+            "INSERT INTO messages (contentId, checkinUserId, wasRead, sentOn, changedOn) " +
+            "SELECT contentId, recipient, false, sentOn, sentOn " +
+            "FROM UNNEST($1::bigint[], $2::varchar[], $3::timestamp[]) AS t(contentId, recipient, sentOn) " +
+            "RETURNING id, contentId";
+
+    // Marks the unread messages of a user read, reports the owner and outcome of each requested message.
+    // The watermark condition matches MessageEntity.UNREAD.
+    private static final String MARK_READ =
+            "WITH requested AS (SELECT DISTINCT id FROM UNNEST($1::bigint[]) AS id), " +
+                 "updated AS (UPDATE messages m SET wasRead = true, changedOn = $3 FROM requested r " +
+                             "WHERE m.id = r.id AND m.checkinUserId = $2 AND m.wasRead = false " +
+                             "AND NOT EXISTS (SELECT 1 FROM user_inbox_stats s WHERE s.checkinUserId = m.checkinUserId " +
+                                             "AND s.lastReadAllAt >= m.sentOn) " +
+                             "RETURNING m.id) " +
+            "SELECT r.id, m.checkinUserId, u.id IS NOT NULL AS updated FROM requested r " +
+            "LEFT JOIN messages m ON m.id = r.id LEFT JOIN updated u ON u.id = r.id";
+
+    // Removes read messages from the counter of a user
+    private static final String READ_STATS =
+            "UPDATE user_inbox_stats SET unread = GREATEST(unread - $2, 0), revision = COALESCE(revision, 0) + 1, " +
+            "changedOn = $3 WHERE checkinUserId = $1";
+
+    @Inject
+    PgPool client;
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    UnreadCounters unreadCounters;
+
+    @Inject
+    InboxEvents inboxEvents;
+
+
+    /***
+     * Send a message to the specified recipients, in a new transaction.
+     * @param message The message to send
+     * @param recipients The Check-in user IDs of the recipients
+     * @return Messages sent
+     */
+    public Uni<List<MessageEntity>> send(Message message, List<String> recipients) {
+        if(null == recipients || recipients.isEmpty())
+            return Uni.createFrom().item(new ArrayList<>());
+
+        return client.withTransaction(connection -> send(connection, message, recipients))
+                     .onItem().invoke(this::committed);
+    }
+
+    /***
+     * Messages inserted with a connection were committed, update the unread counters and
+     * notify the recipients that are listening for new messages.
+     * @param sent The messages that were committed
+     */
+    public void committed(List<MessageEntity> sent) {
+        if(null == sent || sent.isEmpty())
+            return;
+
+        unreadCounters.added(sent.stream().map(m -> m.checkinUserId).toList());
+        inboxEvents.sent(sent);
+    }
+
+    /***
+     * Send a message to the specified recipients, using an existing connection.
+     * Allows callers to include the inserts in a transaction they control.
+     * Callers must call {@link #committed(List)} after the transaction is committed.
+     * @param connection The connection to use
+     * @param message The message to send
+     * @param recipients The Check-in user IDs of the recipients
+     * @return Messages sent, with their Ids
+     */
+    public Uni<List<MessageEntity>> send(SqlConnection connection, Message message, List<String> recipients) {
+        if(null == recipients || recipients.isEmpty())
+            return Uni.createFrom().item(new ArrayList<>());
+
+        // Each chunk locks the counters of its recipients in order, sorting before splitting
+        // into chunks keeps this order across chunks
+        final var sorted = recipients.stream().distinct().sorted().toList();
+        final var sentOn = now();
+        final var chunks = chunk(sorted, messagesConfig.insertChunkSize());
+
+        log.debugf("Inserting %d message(s) in %d chunk(s)", sorted.size(), chunks.size());
+
+        var params = Tuple.of(message.message, message.category, message.url, sentOn);
+        return connection.preparedQuery(INSERT_CONTENT).execute(params)
+            .chain(rows -> {
+                // Content stored, add deliveries
+                final var content = new MessageContentEntity(message, sentOn);
+                content.id = rows.iterator().next().getLong("id");
+
+                final var sent = new ArrayList<MessageEntity>(sorted.size());
+                return Multi.createFrom().iterable(chunks)
+                    .onItem().transformToUniAndConcatenate(chunk -> {
+                        // Insert one chunk of recipients with a single statement
+                        final var chunkRecipients = chunk.toArray(new String[0]);
+                        var deliveryParams = Tuple.tuple()
+                                .addLong(content.id)
+                                .addLocalDateTime(sentOn)
+                                .addArrayOfString(chunkRecipients);
+
+                        return updateStats(connection, chunkRecipients, sentOn)
+                                .chain(unused -> connection.preparedQuery(INSERT_DELIVERIES).execute(deliveryParams));
+                    })
+                    .onItem().invoke(deliveries -> {
+                        for(var row : deliveries) {
+                            var delivery = new MessageEntity(content, row.getString("checkinuserid"));
+                            delivery.id = row.getLong("id");
+                            sent.add(delivery);
+                        }
+                    })
+                    .collect().last()
+                    .replaceWith(sent);
+            });
+    }
+
+    /***
+     * Insert messages with different content, each addressed to a single recipient.
+     * The contents are inserted with one batched statement, then all deliveries with a single statement.
+     * Callers must call {@link #committed(List)} after the transaction is committed.
+     * @param connection The connection to use
+     * @param messages The messages to insert, as created by {@link MessageEntity#MessageEntity(Message)},
+     *                 their Ids are assigned
+     * @return Messages inserted
+     */
+    public Uni<List<MessageEntity>> insert(SqlConnection connection, List<MessageEntity> messages) {
+        if(null == messages || messages.isEmpty())
+            return Uni.createFrom().item(new ArrayList<>());
+
+        log.debugf("Inserting %d message(s) with distinct content", messages.size());
+
+        var contents = new ArrayList<Tuple>();
+        for(var message : messages) {
+            var content = message.content;
+            contents.add(Tuple.of(content.message, content.category, content.link, content.sentOn));
+        }
+
+        return connection.preparedQuery(INSERT_CONTENT).executeBatch(contents)
+            .chain(rows -> {
+                // Contents stored, each batch item has its own result
+                final int count = messages.size();
+                var contentIds = new Long[count];
+                var recipients = new String[count];
+                var sentOn = new LocalDateTime[count];
+
+                var result = rows;
+                for(int i = 0; i < count && null != result; i++, result = result.next()) {
+                    var message = messages.get(i);
+                    message.content.id = result.iterator().next().getLong("id");
+                    contentIds[i] = message.content.id;
+                    recipients[i] = message.checkinUserId;
+                    sentOn[i] = message.sentOn;
+                }
+
+                var params = Tuple.tuple()
+                        .addArrayOfLong(contentIds)
+                        .addArrayOfString(recipients)
+                        .addArrayOfLocalDateTime(sentOn);
+
+                return updateStats(connection, recipients, now())
+                        .chain(unused -> connection.preparedQuery(INSERT_DELIVERY_ROWS).execute(params));
+            })
+            .onItem().transform(deliveries -> {
+                // Each message has its own content, use it to match the returned Ids
+                Map<Long, MessageEntity> byContent = new HashMap<>();
+                for(var message : messages)
+                    byContent.put(message.content.id, message);
+
+                for(var row : deliveries)
+                    byContent.get(row.getLong("contentid")).id = row.getLong("id");
+
+                return messages;
+            });
+    }
+
+    /***
+     * Mark several messages of a user as read, in a new transaction.
+     * @param checkinUserId The user the messages must belong to
+     * @param messageIds The Ids of the messages to mark read
+     * @return Outcome for each distinct message Id, see {@link ReadStatus}
+     */
+    public Uni<Map<Long, String>> markRead(String checkinUserId, Collection<Long> messageIds) {
+        if(null == messageIds || messageIds.isEmpty())
+            return Uni.createFrom().item(new HashMap<>());
+
+        return client.withTransaction(connection -> markRead(connection, checkinUserId, messageIds))
+            .onItem().invoke(outcomes -> {
+                // Committed, update unread count and notify the user's clients
+                final long read = outcomes.values().stream().filter(ReadStatus.STATUS_READ::equals).count();
+                if(read > 0) {
+                    unreadCounters.read(checkinUserId, read);
+                    inboxEvents.read(checkinUserId);
+                }
+            });
+    }
+
+    /***
+     * Mark several messages of a user as read, with a single statement.
+     * The counters of the user are updated in the same transaction.
+     * Callers must update the {@link UnreadCounters} after the transaction is committed.
+     * @param connection The connection to use
+     * @param checkinUserId The user the messages must belong to
+     * @param messageIds The Ids of the messages to mark read
+     * @return Outcome for each distinct message Id, see {@link ReadStatus}
+     */
+    public Uni<Map<Long, String>> markRead(SqlConnection connection, String checkinUserId,
+                                           Collection<Long> messageIds) {
+        if(null == messageIds || messageIds.isEmpty())
+            return Uni.createFrom().item(new HashMap<>());
+
+        final var now = now();
+        var params = Tuple.tuple()
+                .addArrayOfLong(messageIds.toArray(new Long[0]))
+                .addString(checkinUserId)
+                .addLocalDateTime(now);
+
+        return connection.preparedQuery(MARK_READ).execute(params)
+            .chain(rows -> {
+                Map<Long, String> outcomes = new HashMap<>();
+                int read = 0;
+                for(var row : rows) {
+                    final var recipient = row.getString("checkinuserid");
+                    String status;
+                    if(null == recipient)
+                        status = ReadStatus.STATUS_NOT_FOUND;
+                    else if(!recipient.equals(checkinUserId))
+                        status = ReadStatus.STATUS_NO_ACCESS;
+                    else if(row.getBoolean("updated")) {
+                        status = ReadStatus.STATUS_READ;
+                        read++;
+                    }
+                    else
+                        status = ReadStatus.STATUS_ALREADY_READ;
+
+                    outcomes.put(row.getLong("id"), status);
+                }
+
+                log.debugf("Marked %d of %d message(s) read", read, outcomes.size());
+
+                if(0 == read)
+                    return Uni.createFrom().item(outcomes);
+
+                return connection.preparedQuery(READ_STATS).execute(Tuple.of(checkinUserId, read, now))
+                        .replaceWith(outcomes);
+            });
+    }
+
+    /***
+     * Lock the counters of all recipients of the messages that a transaction is about to send.
+     * Transactions that send several messages must call this first, as each message locks the
+     * counters of its own recipients, thus two such transactions could lock them in opposite order.
+     * Missing counters are created.
+     * @param connection The connection to use
+     * @param recipients The recipients of all messages, can contain duplicates
+     * @return Completes when the counters are locked, until the end of the transaction
+     */
+    public Uni<Void> lockStats(SqlConnection connection, Collection<String> recipients) {
+        if(null == recipients || recipients.isEmpty())
+            return Uni.createFrom().voidItem();
+
+        var sorted = recipients.stream().distinct().sorted().toArray(String[]::new);
+        var params = Tuple.tuple().addArrayOfString(sorted).addLocalDateTime(now());
+        return connection.preparedQuery(CREATE_STATS).execute(params)
+            .chain(unused -> connection.preparedQuery(LOCK_STATS).execute(Tuple.of(sorted)))
+            .replaceWithVoid();
+    }
+
+    /***
+     * Add messages that are about to be inserted to the counters of their recipients.
+     * Must be called before the messages are inserted, in the same transaction.
+     * @param connection The connection to use
+     * @param recipients The recipients of the messages, one entry for each message
+     * @param now The current date and time
+     * @return Completes when the counters were updated
+     */
+    private Uni<Void> updateStats(SqlConnection connection, String[] recipients, LocalDateTime now) {
+        var params = Tuple.tuple().addArrayOfString(recipients).addLocalDateTime(now);
+        return connection.preparedQuery(CREATE_STATS).execute(params)
+            .chain(unused -> connection.preparedQuery(UPDATE_STATS).execute(params))
+            .replaceWithVoid();
+    }
+
+    /***
+     * Get the current date and time, the same way {@link MessageEntity} stamps messages.
+     * @return Local date and time
+     */
+    private static LocalDateTime now() {
+        return ZonedDateTime.now(ZoneOffset.UTC)
+                            .withZoneSameInstant(ZoneId.systemDefault())
+                            .toLocalDateTime();
+    }
+
+    /***
+     * Split a list into consecutive chunks.
+     * @param items The list to split
+     * @param chunkSize The maximum number of elements in a chunk
+     * @return List of chunks
+     */
+    private static <T> List<List<T>> chunk(List<T> items, int chunkSize) {
+        final int size = chunkSize > 0 ? chunkSize : items.size();
+        var chunks = new ArrayList<List<T>>();
+        for(int i = 0; i < items.size(); i += size)
+            chunks.add(items.subList(i, Math.min(i + size, items.size())));
+
+        return chunks;
+    }
+}
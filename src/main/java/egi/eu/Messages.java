@@ -1,9 +1,11 @@
 package egi.eu;
 
 import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.enums.SchemaType;
 import org.eclipse.microprofile.openapi.annotations.media.Content;
 import org.eclipse.microprofile.openapi.annotations.media.Schema;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
+import org.eclipse.microprofile.openapi.annotations.parameters.RequestBody;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponses;
 import org.eclipse.microprofile.openapi.annotations.security.SecurityRequirement;
@@ -11,28 +13,47 @@ import org.hibernate.reactive.mutiny.Mutiny;
 import org.jboss.resteasy.reactive.RestHeader;
 import org.jboss.resteasy.reactive.RestPath;
 import org.jboss.resteasy.reactive.RestQuery;
+import org.jboss.resteasy.reactive.RestStreamElementType;
+import org.jboss.resteasy.reactive.common.util.RestMediaType;
 import org.jboss.logging.Logger;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.smallrye.common.annotation.Blocking;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import io.smallrye.mutiny.tuples.Tuple2;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.configuration.MemorySize;
 import io.quarkus.security.identity.SecurityIdentity;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.mutiny.pgclient.PgPool;
 
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 
 import egi.checkin.CheckinConfig;
 import egi.checkin.model.CheckinUser;
+import egi.eu.entity.InboxStatsEntity;
 import egi.eu.entity.MessageEntity;
+import egi.eu.entity.OutboxEntity;
 import egi.eu.model.*;
 
 
@@ -45,6 +66,9 @@ public class Messages extends BaseResource {
 
     private static final Logger log = Logger.getLogger(Users.class);
 
+    // Chunks of a streamed request body read ahead of the parser
+    private static final int BODY_PREFETCH = 16;
+
     @Inject
     MeterRegistry registry;
 
@@ -57,9 +81,39 @@ public class Messages extends BaseResource {
     @Inject
     IntegratedManagementSystemConfig imsConfig;
 
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    ObjectMapper mapper;
+
     @Inject
     Mutiny.SessionFactory sf;
 
+    @Inject
+    PgPool client;
+
+    @Inject
+    MessageWriter writer;
+
+    @Inject
+    Recipients recipients;
+
+    @Inject
+    Idempotency idempotency;
+
+    @Inject
+    UnreadCounters unreadCounters;
+
+    @Inject
+    InboxEvents inboxEvents;
+
+    @Inject
+    MessageSearch messageSearch;
+
+    @Inject
+    MessageExport messageExport;
+
     // Parameter(s) to add to all endpoints
     @RestHeader(TEST_STUB)
     @Parameter(hidden = true)
@@ -69,11 +123,12 @@ public class Messages extends BaseResource {
     /***
      * Page of notification messages
      */
-    public static class PageOfMessages extends Page<Message, LocalDateTime> {
-        public PageOfMessages(String baseUri, LocalDateTime from, int limit, List<MessageEntity> messages_) {
+    public static class PageOfMessages extends Page<Message, String> {
+        public PageOfMessages(String baseUri, String from, int limit, List<Message> messages,
+                              LocalDateTime readAllAt) {
             super();
 
-            var messages = messages_.stream().map(Message::new).collect(Collectors.toList());
+            messages.forEach(m -> m.readBefore(readAllAt));
             populate(baseUri, from, limit, messages, false);
         }
     }
@@ -87,8 +142,9 @@ public class Messages extends BaseResource {
     /**
      * Send notification message to a user or to all users holding a role.
      * @param auth The access token needed to call the service.
+     * @param async Whether to queue the message and send it in the background.
      * @param message The message to send and the recipient(s).
-     * @return API Response, wraps a {@link Count} or an ActionError entity
+     * @return API Response, wraps a {@link Count}, a {@link SendStatus} or an ActionError entity
      */
     @POST
     @Path("/messages")
@@ -100,21 +156,40 @@ public class Messages extends BaseResource {
             @APIResponse(responseCode = "201", description = "Sent",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = Count.class))),
+            @APIResponse(responseCode = "202", description = "Queued for sending",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = SendStatus.class))),
             @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = ActionError.class))),
             @APIResponse(responseCode = "401", description="Authorization required"),
             @APIResponse(responseCode = "503", description="Try again later")
     })
-    public Uni<Response> send(@RestHeader(HttpHeaders.AUTHORIZATION) String auth, Message message)
+    public Uni<Response> send(@RestHeader(HttpHeaders.AUTHORIZATION) String auth,
+
+                              @RestQuery("async")
+                              @Parameter(description = "Queue the message and send it in the background.\n" +
+                                                       "Use the returned tracking Id to check if it was sent.")
+                              @Schema(defaultValue = "false")
+                              boolean async,
+
+                              @RestHeader(Idempotency.HEADER)
+                              @Parameter(description = "Unique key of this send request, retrying a request with\n" +
+                                                       "the same key returns the original result without sending\n" +
+                                                       "the message again. When sending in the background, this is\n" +
+                                                       "the status of the originally queued request.")
+                              String idempotencyKey,
+
+                              Message message)
     {
         final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
         addToDC("userIdCaller", checkinUserId);
         addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
         addToDC("processName", imsConfig.group());
         addToDC("message", message);
+        addToDC("async", async);
 
-        final boolean sendToRole = null != message.process || null != message.role;
+        final boolean sendToRole = Recipients.sendToRole(message);
         log.infof("Sending message to user%s", sendToRole ? "s with role" : "");
 
         if(sendToRole && (null == message.process || null == message.role)) {
@@ -124,52 +199,49 @@ public class Messages extends BaseResource {
             return Uni.createFrom().item(ae.toResponse());
         }
 
-        final var sentCount = new ArrayList<Integer>();
+        final boolean hasKey = null != idempotencyKey && !idempotencyKey.isBlank();
+        if(hasKey && idempotencyKey.length() > Idempotency.MAX_KEY_LENGTH) {
+            var ae = new ActionError("badRequest", "Idempotency key is too long");
+            return Uni.createFrom().item(ae.toResponse());
+        }
+
+        final var requestKey = hasKey ? Idempotency.requestKey(checkinUserId, idempotencyKey) : null;
+        if(async)
+            return queue(message, checkinUserId, requestKey);
+
+        final var alreadySent = new ArrayList<Boolean>();
         Uni<Response> result = Uni.createFrom().nullItem()
 
             .chain(unused -> {
-                // Get REST client for Check-in
-                if(sendToRole && !checkin.init(this.checkinConfig, this.imsConfig, stub))
-                    // Could not get REST client
-                    return Uni.createFrom().failure(new ActionException("invalidConfig"));
-
-                return Uni.createFrom().item(unused);
+                // Check if a request with the same key was already completed
+                return hasKey ? idempotency.findAsync(requestKey) : Uni.createFrom().<Integer>nullItem();
             })
-            .chain(unused -> {
-                if(sendToRole)
-                    // List users holding role
-                    return checkin.listUsersWithGroupRolesAsync(message.process, message.role);
+            .chain(previouslySent -> {
+                if(null != previouslySent) {
+                    // Already sent, return the original result without sending again
+                    alreadySent.add(true);
+                    return Uni.createFrom().item(previouslySent);
+                }
 
-                var userList = new ArrayList<CheckinUser>();
-                var user = new CheckinUser(message.checkinUserId);
-                userList.add(user);
+                // Get the recipients, when sending to all users with role this excludes the caller
+                return recipients.resolveAsync(message, checkinUserId, stub)
+                    .chain(userIds -> {
+                        // Create new message(s)
+                        message.process = null;
+                        message.role = null;
 
-                return Uni.createFrom().item(userList);
-            })
-            .chain(usersWithRole -> {
-                return sf.withTransaction((session, tx) -> {
-                    // Create new message(s)
-                    message.process = null;
-                    message.role = null;
-
-                    var messages = new ArrayList<MessageEntity>();
-                    for(var user : usersWithRole) {
-                        // When sending to all users with role, exclude caller
-                        if(sendToRole && checkinUserId.equals(user.checkinUserId))
-                            continue;
-
-                        message.checkinUserId = user.checkinUserId;
-                        messages.add(new MessageEntity(message));
-                    }
-                    sentCount.add(messages.size());
+                        if(!hasKey)
+                            return writer.send(message, userIds).onItem().transform(List::size);
 
-                    return session.persistAll(messages.toArray());
-                });
+                        return idempotency.sendOnce(requestKey, checkinUserId,
+                                                    connection -> writer.send(connection, message, userIds),
+                                                    writer::committed);
+                    });
             })
-            .chain(unused -> {
+            .chain(sent -> {
                 // Send complete, success
-                var count = new Count("Sent");
-                count.sentMessages = sentCount.get(0);
+                var count = new Count(alreadySent.isEmpty() ? "Sent" : "Already sent");
+                count.sentMessages = sent;
                 addToDC("messageCount", count.sentMessages);
                 log.infof("Message%s sent", count.sentMessages > 0 ? "s" : "");
                 return Uni.createFrom().item(Response.ok(count).status(Response.Status.CREATED).build());
@@ -182,6 +254,385 @@ public class Messages extends BaseResource {
         return result;
     }
 
+    /**
+     * Queue notification message to be sent in the background.
+     * @param message The message to send and the recipient(s).
+     * @param checkinUserId The caller, sending the message
+     * @param requestKey The key of the send request, null if the caller did not supply an idempotency key
+     * @return API Response, wraps a {@link SendStatus} or an ActionError entity
+     */
+    private Uni<Response> queue(Message message, String checkinUserId, String requestKey)
+    {
+        final var request = new OutboxEntity(message, checkinUserId);
+
+        Uni<Response> result = Uni.createFrom().nullItem()
+
+            .chain(unused -> {
+                if(null == requestKey)
+                    return sf.withTransaction((session, tx) -> session.persist(request).replaceWith(request));
+
+                // Queue once, retries get the status of the original request
+                return idempotency.queueOnce(requestKey, request)
+                    .chain(trackingId -> {
+                        if(null == trackingId)
+                            // Key was used by a request that was not sent in the background
+                            return Uni.createFrom().failure(new ActionException("badRequest",
+                                        "Idempotency key was already used to send a message immediately"));
+
+                        return sf.withSession(session -> OutboxEntity.getRequest(trackingId));
+                    });
+            })
+            .chain(queued -> {
+                // Queued, success
+                addToDC("trackingId", queued.id);
+                log.info("Message queued for sending");
+                return Uni.createFrom().item(Response.ok(new SendStatus(queued))
+                                                     .status(Response.Status.ACCEPTED).build());
+            })
+            .onFailure().recoverWithItem(e -> {
+                log.error("Failed to queue message");
+                return new ActionError(e).toResponse();
+            });
+
+        return result;
+    }
+
+    /**
+     * Get the status of a message sent in the background.
+     * @param auth The access token needed to call the service.
+     * @param trackingId The Id returned when the message was queued.
+     * @return API Response, wraps a {@link SendStatus} or an ActionError entity
+     */
+    @GET
+    @Path("/messages/outbox/{trackingId}")
+    @SecurityRequirement(name = "OIDC")
+    @RolesAllowed( Role.IMS_USER )
+    @Operation(operationId = "getSendStatus", summary = "Get the status of a message sent in the background")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200", description = "Success",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = SendStatus.class))),
+            @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ActionError.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "403", description="Permission denied"),
+            @APIResponse(responseCode = "404", description="Not found",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ActionError.class))),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    public Uni<Response> getSendStatus(@RestHeader(HttpHeaders.AUTHORIZATION) String auth,
+
+                                       @RestPath("trackingId")
+                                       Long trackingId)
+    {
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+        addToDC("trackingId", trackingId);
+
+        log.info("Getting send status");
+
+        Uni<Response> result = Uni.createFrom().nullItem()
+
+            .chain(unused -> {
+                return sf.withSession(session -> OutboxEntity.getRequest(trackingId));
+            })
+            .chain(request -> {
+                // Got the send request
+                if(null == request)
+                    // No such request
+                    return Uni.createFrom().failure(new ActionException("notFound", "Send request not found"));
+
+                if(!request.senderUserId.equals(checkinUserId))
+                    // This message was not sent by the caller
+                    return Uni.createFrom().failure(new ActionException("noAccess",
+                                                                        "Can only check your own messages"));
+
+                log.info("Got send status");
+                return Uni.createFrom().item(Response.ok(new SendStatus(request)).build());
+            })
+            .onFailure().recoverWithItem(e -> {
+                log.error("Failed to get send status");
+                return new ActionError(e).toResponse();
+            });
+
+        return result;
+    }
+
+    /**
+     * Send several notification messages at once, each to a user or to all users holding a role.
+     * @param auth The access token needed to call the service.
+     * @param messages The messages to send and their recipient(s).
+     * @return API Response, wraps a list of {@link Count} (one for each message) or an ActionError entity
+     */
+    @POST
+    @Path("/messages/batch")
+    @SecurityRequirement(name = "OIDC")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @RolesAllowed( Role.IMS_USER )
+    @Operation(operationId = "sendMessages", summary = "Send several messages at once",
+               description = "All messages are sent, or none of them")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "201", description = "Sent",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(type = SchemaType.ARRAY, implementation = Count.class))),
+            @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ActionError.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    public Uni<Response> sendBatch(@RestHeader(HttpHeaders.AUTHORIZATION) String auth, List<Message> messages)
+    {
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+        addToDC("messageCount", null != messages ? messages.size() : 0);
+
+        log.info("Sending messages");
+
+        if(null == messages || messages.isEmpty()) {
+            var ae = new ActionError("badRequest", "No messages to send");
+            return Uni.createFrom().item(ae.toResponse());
+        }
+
+        for(int i = 0; i < messages.size(); i++) {
+            var message = messages.get(i);
+            if(null == message || !Recipients.validAddress(message)) {
+                // Each message must be addressed either to a user or to a role
+                var ae = new ActionError("badRequest",
+                                   "Each message must be addressed to a user, or to an IMS process and role",
+                                   Tuple2.of("index", String.valueOf(i)));
+                return Uni.createFrom().item(ae.toResponse());
+            }
+        }
+
+        Uni<Response> result = Uni.createFrom().nullItem()
+
+            .chain(unused -> {
+                // Get the recipients, users holding the same role are only fetched once
+                return recipients.resolveAllAsync(messages, checkinUserId, stub);
+            })
+            .chain(userIds -> {
+                // Create all messages in one transaction, locking the counters of
+                // all recipients first, so that concurrent batches cannot deadlock
+                var allUserIds = userIds.stream().flatMap(List::stream).toList();
+                return client.<List<List<MessageEntity>>>withTransaction(connection -> {
+                    return writer.lockStats(connection, allUserIds)
+                        .onItem().transformToMulti(locked -> Multi.createFrom().range(0, messages.size()))
+                        .onItem().transformToUniAndConcatenate(i -> {
+                            return writer.send(connection, messages.get(i), userIds.get(i));
+                        })
+                        .collect().asList();
+                })
+                .onItem().invoke(sentMessages -> sentMessages.forEach(writer::committed));
+            })
+            .chain(sentMessages -> {
+                // Send complete, success
+                var counts = new ArrayList<Count>();
+                int total = 0;
+                for(var sent : sentMessages) {
+                    var count = new Count("Sent");
+                    count.sentMessages = sent.size();
+                    counts.add(count);
+                    total += sent.size();
+                }
+
+                addToDC("sentCount", total);
+                log.info("Messages sent");
+                return Uni.createFrom().item(Response.ok(counts).status(Response.Status.CREATED).build());
+            })
+            .onFailure().recoverWithItem(e -> {
+                log.error("Failed to send messages");
+                return new ActionError(e).toResponse();
+            });
+
+        return result;
+    }
+
+    /**
+     * Send a stream of notification messages, each to a user or to all users holding a role.
+     * The messages are read and sent in batches, so the stream does not have to fit in memory.
+     * @param auth The access token needed to call the service.
+     * @param request The request, its body holds the messages to send as newline delimited JSON.
+     * @return Stream of {@link Count}, one after each batch of messages is sent
+     */
+    @POST
+    @Path("/messages/stream")
+    @SecurityRequirement(name = "OIDC")
+    @Consumes(RestMediaType.APPLICATION_NDJSON)
+    @Produces(RestMediaType.APPLICATION_NDJSON)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    @RolesAllowed( Role.IMS_USER )
+    @Blocking
+    @Operation(operationId = "streamMessages", summary = "Send a stream of messages",
+               description = "Messages are sent in batches, a count is returned after each batch.\n" +
+                             "If sending fails, the last count returned reports the messages sent so far.\n" +
+                             "Large streams must be sent with chunked transfer encoding.")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200", description = "Sending",
+                    content = @Content(mediaType = RestMediaType.APPLICATION_NDJSON,
+                    schema = @Schema(implementation = Count.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    @RequestBody(content = @Content(mediaType = RestMediaType.APPLICATION_NDJSON,
+                 schema = @Schema(implementation = Message.class)))
+    public Multi<Count> sendStream(@RestHeader(HttpHeaders.AUTHORIZATION) String auth, HttpServerRequest request)
+    {
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+
+        log.info("Sending message stream");
+
+        final int batchSize = Math.max(1, messagesConfig.streamBatchSize());
+        final var total = new AtomicLong();
+
+        final Iterator<Message> source;
+        try {
+            source = mapper.readerFor(Message.class).readValues(readBody(request, messagesConfig.streamMaxSize()));
+        }
+        catch(IOException e) {
+            log.error("Failed to read message stream");
+            var count = new Count("Invalid message stream");
+            count.totalMessages = 0L;
+            return Multi.createFrom().item(count);
+        }
+
+        Multi<Count> result = Multi.createBy().repeating()
+            .uni(() -> {
+                // Read next batch, parsing blocks so do it on a worker thread
+                return Uni.createFrom().item(() -> readBatch(source, batchSize))
+                                       .runSubscriptionOn(Infrastructure.getDefaultWorkerPool());
+            })
+            .whilst(batch -> batch.size() == batchSize)
+            .select().where(batch -> !batch.isEmpty())
+            .onItem().transformToUniAndConcatenate(batch -> {
+                // Send batch before reading the next one
+                return sendStreamBatch(batch, checkinUserId);
+            })
+            .onItem().transform(sent -> {
+                // Batch sent, report progress
+                var count = new Count("Sent");
+                count.sentMessages = sent;
+                count.totalMessages = total.addAndGet(sent);
+                return count;
+            })
+            .onCompletion().invoke(() -> {
+                addToDC("messageCount", total.get());
+                log.info("Message stream sent");
+            })
+            .onFailure().recoverWithItem(e -> {
+                log.error("Failed to send message stream");
+                var ae = new ActionError(e);
+                var count = new Count(null != ae.description ? ae.description : "Failed to send messages");
+                count.totalMessages = total.get();
+                return count;
+            });
+
+        return result;
+    }
+
+    /**
+     * Read the body of a request as it arrives, failing once it exceeds the maximum size.
+     * Chunks are only fetched from the connection as they are read, so the body does not have
+     * to fit in memory.
+     * @param request The request to read the body of
+     * @param maxSize The maximum size of the body
+     * @return Stream of the body, reading blocks so it must be read on a worker thread
+     */
+    private static InputStream readBody(HttpServerRequest request, MemorySize maxSize)
+    {
+        final long limit = maxSize.asLongValue();
+        final var size = new AtomicLong();
+        final var chunks = io.vertx.mutiny.core.http.HttpServerRequest.newInstance(request).toMulti()
+            .onItem().transform(chunk -> {
+                if(size.addAndGet(chunk.length()) > limit)
+                    throw new ActionException("badRequest", "Message stream exceeds the maximum size");
+
+                return (InputStream)new ByteArrayInputStream(chunk.getBytes());
+            })
+            .subscribe().asIterable(BODY_PREFETCH, () -> new ArrayBlockingQueue<>(BODY_PREFETCH))
+            .iterator();
+
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() { return chunks.hasNext(); }
+
+            @Override
+            public InputStream nextElement() { return chunks.next(); }
+        });
+    }
+
+    /**
+     * Read the next batch of messages from a stream.
+     * @param source The stream to read from
+     * @param batchSize The maximum number of messages to read
+     * @return Messages read, fewer than the batch size when the stream ends
+     */
+    private static List<Message> readBatch(Iterator<Message> source, int batchSize)
+    {
+        var batch = new ArrayList<Message>(batchSize);
+        while(batch.size() < batchSize && source.hasNext())
+            batch.add(source.next());
+
+        return batch;
+    }
+
+    /**
+     * Send a batch of messages read from a stream, in one transaction.
+     * @param batch The messages to send
+     * @param checkinUserId The caller, sending the messages
+     * @return Number of messages sent
+     */
+    private Uni<Integer> sendStreamBatch(List<Message> batch, String checkinUserId)
+    {
+        var toUsers = new ArrayList<MessageEntity>();
+        var toRoles = new ArrayList<Message>();
+        for(var message : batch) {
+            if(null == message || !Recipients.validAddress(message))
+                // Each message must be addressed either to a user or to a role
+                return Uni.createFrom().failure(new ActionException("badRequest",
+                                "Each message must be addressed to a user, or to an IMS process and role"));
+
+            if(Recipients.sendToRole(message))
+                toRoles.add(message);
+            else
+                toUsers.add(new MessageEntity(message));
+        }
+
+        return recipients.resolveAllAsync(toRoles, checkinUserId, stub)
+            .chain(userIds -> {
+                // Lock the counters of all recipients first, so that concurrent batches cannot deadlock
+                var allUserIds = new ArrayList<String>();
+                toUsers.forEach(m -> allUserIds.add(m.checkinUserId));
+                userIds.forEach(allUserIds::addAll);
+
+                return client.withTransaction(connection -> {
+                    return writer.lockStats(connection, allUserIds)
+                        .chain(locked -> writer.insert(connection, toUsers))
+                        .chain(sentToUsers -> {
+                            if(toRoles.isEmpty())
+                                return Uni.createFrom().item(sentToUsers);
+
+                            return Multi.createFrom().range(0, toRoles.size())
+                                .onItem().transformToUniAndConcatenate(i -> {
+                                    return writer.send(connection, toRoles.get(i), userIds.get(i));
+                                })
+                                .collect().in(() -> new ArrayList<>(sentToUsers), List::addAll);
+                        });
+                })
+                .onItem().invoke(writer::committed)
+                .onItem().transform(List::size);
+            });
+    }
+
     /**
      * Mark notification message as read.
      * @param auth The access token needed to call the service.
@@ -225,27 +676,38 @@ public class Messages extends BaseResource {
 
             .chain(unused -> {
                 return sf.withTransaction((session, tx) -> { return
-                    // Get the message
-                    MessageEntity.getMessage(messageId)
-                    .chain(message -> {
-                        // Got the message
-                        if(null == message)
-                            // No such message
-                            return Uni.createFrom().failure(new ActionException("notFound", "Message not found"));
-
-                        if(!message.checkinUserId.equals(checkinUserId))
-                            // This message does not belong to the caller
-                            return Uni.createFrom().failure(new ActionException("noAccess",
-                                                                                "Can only read your own messages"));
-
-                        // Update message
-                        message.wasRead = true;
-                        return session.persist(message);
+                    // Mark the message read, if it belongs to the caller and is unread
+                    MessageEntity.markRead(messageId, checkinUserId)
+                    .chain(read -> {
+                        if(read > 0)
+                            // Update the counters in the same transaction
+                            return InboxStatsEntity.read(checkinUserId, read).replaceWith(true);
+
+                        // Nothing changed, find out why
+                        return MessageEntity.getRecipient(messageId)
+                            .chain(recipient -> {
+                                if(null == recipient)
+                                    // No such message
+                                    return Uni.createFrom().failure(new ActionException("notFound", "Message not found"));
+
+                                if(!recipient.equals(checkinUserId))
+                                    // This message does not belong to the caller
+                                    return Uni.createFrom().failure(new ActionException("noAccess",
+                                                                                        "Can only read your own messages"));
+
+                                // Already read
+                                return Uni.createFrom().item(false);
+                            });
                     });
                 });
             })
-            .chain(unused -> {
+            .chain(wasUnread -> {
                 // Read complete, success
+                if(wasUnread) {
+                    unreadCounters.read(checkinUserId, 1);
+                    inboxEvents.read(checkinUserId);
+                }
+
                 log.info("Message marked read");
                 return Uni.createFrom().item(Response.ok(new ActionSuccess("Read"))
                                                      .status(Response.Status.CREATED).build());
@@ -261,7 +723,7 @@ public class Messages extends BaseResource {
     /**
      * Mark all notifications or the caller as read.
      * @param auth The access token needed to call the service.
-     * @return API Response, wraps an ActionSuccess or an ActionError entity
+     * @return API Response, wraps a {@link Count} or an ActionError entity
      */
     @PATCH
     @Path("/messages/read")
@@ -272,7 +734,7 @@ public class Messages extends BaseResource {
     @APIResponses(value = {
             @APIResponse(responseCode = "201", description = "Read",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
-                    schema = @Schema(implementation = ActionSuccess.class))),
+                    schema = @Schema(implementation = Count.class))),
             @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = ActionError.class))),
@@ -295,24 +757,33 @@ public class Messages extends BaseResource {
         Uni<Response> result = Uni.createFrom().nullItem()
 
             .chain(unused -> {
+                if(messagesConfig.readWatermark())
+                    return sf.withTransaction((session, tx) -> { return
+                        // Only move the read watermark, messages sent before it count as read
+                        InboxStatsEntity.countUnread(checkinUserId)
+                        .call(unread -> InboxStatsEntity.readAll(checkinUserId, LocalDateTime.now()))
+                        .onItem().transform(Long::intValue);
+                    });
+
                 return sf.withTransaction((session, tx) -> { return
-                    // Get all unread messages
-                    MessageEntity.getUnreadMessages(checkinUserId)
-                    .chain(messages -> {
-                        // Got the unread messages
-                        for(var message : messages)
-                            message.wasRead = true;
-
-                        // Update messages
-                        return session.persistAll(messages.toArray());
+                    // Mark all unread messages read
+                    MessageEntity.markAllRead(checkinUserId)
+                    .call(read -> {
+                        // Update the counters in the same transaction
+                        return InboxStatsEntity.read(checkinUserId, read);
                     });
                 });
             })
-            .chain(unused -> {
+            .chain(read -> {
                 // Read complete, success
+                unreadCounters.allRead(checkinUserId);
+                inboxEvents.read(checkinUserId);
+                addToDC("messageCount", read);
                 log.info("All messages marked read");
-                return Uni.createFrom().item(Response.ok(new ActionSuccess("Read"))
-                                                     .status(Response.Status.CREATED).build());
+
+                var count = new Count("Read");
+                count.readMessages = read;
+                return Uni.createFrom().item(Response.ok(count).status(Response.Status.CREATED).build());
             })
             .onFailure().recoverWithItem(e -> {
                 log.error("Failed to mark all messages read");
@@ -322,46 +793,206 @@ public class Messages extends BaseResource {
         return result;
     }
 
+    /**
+     * Mark several notifications of the caller as read.
+     * @param auth The access token needed to call the service.
+     * @param messageIds The Ids of the messages to mark read.
+     * @return API Response, wraps a list of {@link ReadStatus} (one for each message) or an ActionError entity
+     */
+    @PATCH
+    @Path("/messages/batch/read")
+    @SecurityRequirement(name = "OIDC")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @RolesAllowed( Role.IMS_USER )
+    @Operation(operationId = "markMessagesRead", summary = "Mark several messages as read",
+               description = "Reports the outcome for each message, messages of other users are not changed")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "201", description = "Read",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(type = SchemaType.ARRAY, implementation = ReadStatus.class))),
+            @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ActionError.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    public Uni<Response> markSomeRead(@RestHeader(HttpHeaders.AUTHORIZATION) String auth, List<Long> messageIds)
+    {
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+        addToDC("messageCount", null != messageIds ? messageIds.size() : 0);
+
+        log.info("Marking messages read");
+
+        if(null == messageIds || messageIds.isEmpty() || messageIds.contains(null)) {
+            var ae = new ActionError("badRequest", "Message Ids required");
+            return Uni.createFrom().item(ae.toResponse());
+        }
+
+        Uni<Response> result = Uni.createFrom().nullItem()
+
+            .chain(unused -> {
+                // Mark all messages read with one statement
+                return writer.markRead(checkinUserId, messageIds);
+            })
+            .chain(outcomes -> {
+                // Read complete, success
+                var statuses = new ArrayList<ReadStatus>();
+                int read = 0;
+                for(var messageId : messageIds) {
+                    var status = outcomes.get(messageId);
+                    if(ReadStatus.STATUS_READ.equals(status)) {
+                        // Report a message listed several times as read only once
+                        read++;
+                        outcomes.put(messageId, ReadStatus.STATUS_ALREADY_READ);
+                    }
+
+                    statuses.add(new ReadStatus(messageId, status));
+                }
+
+                addToDC("readCount", read);
+                log.info("Messages marked read");
+
+                return Uni.createFrom().item(Response.ok(statuses).status(Response.Status.CREATED).build());
+            })
+            .onFailure().recoverWithItem(e -> {
+                log.error("Failed to mark messages read");
+                return new ActionError(e).toResponse();
+            });
+
+        return result;
+    }
+
+    /**
+     * Listen for new notification messages and changes of the unread count of the caller.
+     * @param auth The access token needed to call the service.
+     * @return Stream of {@link InboxEvent}, starting with the current unread count
+     */
+    @GET
+    @Path("/messages/stream")
+    @SecurityRequirement(name = "OIDC")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    @RolesAllowed( Role.IMS_USER )
+    @Operation(operationId = "listenForMessages", summary = "Listen for new messages",
+               description = "Server-sent events with new messages and unread count changes.\n" +
+                             "Heartbeat events are sent on idle streams. Clients that do not keep up\n" +
+                             "with the events are disconnected and should reconnect.")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200", description = "Listening",
+                    content = @Content(mediaType = MediaType.SERVER_SENT_EVENTS,
+                    schema = @Schema(implementation = InboxEvent.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    public Multi<InboxEvent> listen(@RestHeader(HttpHeaders.AUTHORIZATION) String auth)
+    {
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+
+        log.info("Listening for messages");
+
+        return inboxEvents.subscribe(checkinUserId)
+            .onTermination().invoke(() -> {
+                log.info("Stopped listening for messages");
+            });
+    }
+
     /**
      * Get number of unread notification messages for the caller.
      * @param auth The access token needed to call the service.
+     * @param waitFor The unread count known by the caller, wait until the count is different.
+     * @param timeout_ How long to wait at most, in seconds.
      * @return API Response, wraps a {@link Count} or an ActionError entity
      */
     @GET
     @Path("/messages/unread")
     @SecurityRequirement(name = "OIDC")
     @RolesAllowed( Role.IMS_USER )
-    @Operation(operationId = "countUnreadMessages", summary = "Get number of unread messages")
+    @Operation(operationId = "countUnreadMessages", summary = "Get number of unread messages",
+               description = "Use the parameter _waitFor_ to long-poll for changes of the count")
     @APIResponses(value = {
             @APIResponse(responseCode = "200", description = "Success",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = Count.class))),
+            @APIResponse(responseCode = "304", description = "Not modified since the version in If-None-Match"),
             @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = ActionError.class))),
             @APIResponse(responseCode = "401", description="Authorization required"),
             @APIResponse(responseCode = "503", description="Try again later")
     })
-    public Uni<Response> countUnread(@RestHeader(HttpHeaders.AUTHORIZATION) String auth)
+    public Uni<Response> countUnread(@RestHeader(HttpHeaders.AUTHORIZATION) String auth,
+
+                                     @RestHeader(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+
+                                     @RestQuery("waitFor")
+                                     @Parameter(description = "Unread count already known to the caller.\n" +
+                                                              "Responds once the count is different, or\n" +
+                                                              "after the timeout with the unchanged count.")
+                                     Long waitFor,
+
+                                     @RestQuery("timeout")
+                                     @Parameter(description = "How long to wait for a change, e.g. 30s")
+                                     @Schema(defaultValue = "30s")
+                                     String timeout_)
     {
         final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
         addToDC("userIdCaller", checkinUserId);
         addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
         addToDC("processName", imsConfig.group());
+        addToDC("waitFor", waitFor);
+        addToDC("timeout", timeout_);
 
         log.info("Count unread messages");
 
+        Duration timeout = Duration.ofSeconds(30);
+        if(null != timeout_ && !timeout_.isBlank()) {
+            try {
+                var seconds = timeout_.strip().toLowerCase();
+                if(seconds.endsWith("s"))
+                    seconds = seconds.substring(0, seconds.length() - 1);
+
+                timeout = Duration.ofSeconds(Long.parseLong(seconds));
+            }
+            catch(NumberFormatException e) {
+                var ae = new ActionError("badRequest", "Invalid parameter timeout");
+                return Uni.createFrom().item(ae.toResponse());
+            }
+
+            if(timeout.isNegative()) {
+                var ae = new ActionError("badRequest", "Invalid parameter timeout");
+                return Uni.createFrom().item(ae.toResponse());
+            }
+        }
+
+        final var maxWait = messagesConfig.push().maxWait();
+        final var finalTimeout = timeout.compareTo(maxWait) > 0 ? maxWait : timeout;
         Uni<Response> result = Uni.createFrom().nullItem()
 
             .chain(unused -> {
-                return sf.withSession(session -> MessageEntity.countUnreadMessages(checkinUserId));
+                if(null == waitFor || finalTimeout.isZero())
+                    return unreadCounters.getAsync(checkinUserId);
+
+                // Wait for the count to change, without holding a thread
+                return inboxEvents.awaitUnreadChange(checkinUserId, waitFor, finalTimeout);
             })
             .chain(unread -> {
                 // Got unread count, success
                 log.info("Got unread message count");
+
+                // The response only depends on the count
+                final var etag = new EntityTag("unread-" + unread, true);
+                if(notModified(ifNoneMatch, etag))
+                    return Uni.createFrom().item(Response.notModified(etag).build());
+
                 var count = new Count(unread > 0 ? "Found unread messages" : "No unread messages");
                 count.unreadMessages = unread;
-                return Uni.createFrom().item(Response.ok(count).build());
+                return Uni.createFrom().item(Response.ok(count).tag(etag).build());
             })
             .onFailure().recoverWithItem(e -> {
                 log.error("Failed to count unread messages");
@@ -374,8 +1005,11 @@ public class Messages extends BaseResource {
     /**
      * List notification messages for the caller.
      * @param auth The access token needed to call the service
-     * @param from_ The UTC date and time after which to return elements
+     * @param from_ The cursor returned as part of the link to the next page
      * @param limit_ The maximum number of elements to return
+     * @param category Only return messages in this category
+     * @param unread Only return unread messages
+     * @param until_ Only return messages sent at or before this UTC date and time
      * @return API Response, wraps an {@link PageOfMessages} or an ActionError entity
      */
     @GET
@@ -389,6 +1023,7 @@ public class Messages extends BaseResource {
             @APIResponse(responseCode = "200", description = "Success",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = PageOfMessages.class))),
+            @APIResponse(responseCode = "304", description = "Not modified since the version in If-None-Match"),
             @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
                     content = @Content(mediaType = MediaType.APPLICATION_JSON,
                     schema = @Schema(implementation = ActionError.class))),
@@ -398,19 +1033,35 @@ public class Messages extends BaseResource {
     public Uni<Response> list(@RestHeader(HttpHeaders.AUTHORIZATION) String auth,
                               @Context UriInfo uriInfo,
                               @Context HttpHeaders httpHeaders,
+                              @RestHeader(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
 
                               @RestQuery("from")
-                              @Parameter(description = "Only return logs before this UTC date and time.\n" +
-                                                       "Do not include time zone in this parameter.")
-                              @Schema(format = "yyyy-mm-ddThh:mm:ss.SSSSSS", defaultValue = "now")
+                              @Parameter(description = "Position to continue from, use the link to the next page.\n" +
+                                                       "For compatibility, also accepts a UTC date and time\n" +
+                                                       "(without time zone) to return older messages.")
                               String from_,
 
                               @RestQuery("limit")
                               @Parameter(description = "Restrict the number of results returned")
                               @Schema(defaultValue = "100")
-                              int limit_)
+                              int limit_,
+
+                              @RestQuery("category")
+                              @Parameter(description = "Only return messages in this category")
+                              String category_,
+
+                              @RestQuery("unread")
+                              @Parameter(description = "Only return unread messages")
+                              @Schema(defaultValue = "false")
+                              boolean unread,
+
+                              @RestQuery("until")
+                              @Parameter(description = "Only return messages sent at or before this UTC date and time\n" +
+                                                       "(without time zone)")
+                              String until_)
     {
         final int limit = (0 == limit_) ? 100 : limit_;
+        final var category = (null != category_ && !category_.isBlank()) ? category_ : null;
 
         final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
         addToDC("userIdCaller", checkinUserId);
@@ -418,49 +1069,232 @@ public class Messages extends BaseResource {
         addToDC("processName", imsConfig.group());
         addToDC("from", from_);
         addToDC("limit", limit);
+        addToDC("category", category);
+        addToDC("unread", unread);
+        addToDC("until", until_);
 
         log.info("Listing messages");
 
-        LocalDateTime from = null;
-        try {
-            if((null == from_ || from_.isBlank() || from_.equalsIgnoreCase("now")))
-                from = LocalDateTime.now();
-            else
+        LocalDateTime until = null;
+        if(null != until_ && !until_.isBlank()) {
+            try {
                 // Convert from UTC to the local timezone
-                from = LocalDateTime.parse(from_)
-                                    .atZone(ZoneOffset.UTC)
-                                    .withZoneSameInstant(ZoneId.systemDefault())
-                                    .toLocalDateTime();
+                until = LocalDateTime.parse(until_)
+                                     .atZone(ZoneOffset.UTC)
+                                     .withZoneSameInstant(ZoneId.systemDefault())
+                                     .toLocalDateTime();
+            }
+            catch(DateTimeParseException e) {
+                var ae = new ActionError("badRequest", "Invalid parameter until");
+                return Uni.createFrom().item(ae.toResponse());
+            }
+        }
+
+        MessageCursor after = null;
+        if(null != from_ && !from_.isBlank() && !from_.equalsIgnoreCase("now")) {
+            try {
+                after = MessageCursor.parse(from_);
+            }
+            catch(IllegalArgumentException e) {
+                var ae = new ActionError("badRequest", "Invalid parameter from");
+                return Uni.createFrom().item(ae.toResponse());
+            }
         }
-        catch(DateTimeParseException e) {
-            var ae = new ActionError("badRequest", "Invalid parameter from");
+
+        final var finalAfter = after;
+        final var finalUntil = until;
+        Uni<Response> result = Uni.createFrom().nullItem()
+
+            .chain(unused -> {
+                return sf.withSession(session -> { return
+                    // Get the counters, their revision tells if the messages changed,
+                    // and the read watermark tells which messages were read
+                    InboxStatsEntity.getStats(checkinUserId)
+                    .chain(stats -> {
+                        final var etag = inboxTag(stats);
+                        if(notModified(ifNoneMatch, etag)) {
+                            // Caller already has these messages
+                            log.info("Messages not modified");
+                            return Uni.createFrom().item(Response.notModified(etag).build());
+                        }
+
+                        final var readAllAt = null != stats ? stats.lastReadAllAt : null;
+                        return MessageEntity.getMessages(checkinUserId, category, unread, finalUntil, finalAfter, limit)
+                            .onItem().transform(messages -> {
+                                // Got messages, success
+                                log.info("Got messages");
+                                var uri = getRealRequestUri(uriInfo, httpHeaders);
+                                var page = new PageOfMessages(uri.toString(), from_, limit, messages, readAllAt);
+                                var logCount = messages.size();
+                                if(!messages.isEmpty() && logCount == limit) {
+                                    var lastLog = messages.get(logCount - 1);
+                                    page.setNextPage(new MessageCursor(lastLog).encode(), limit);
+                                }
+
+                                return Response.ok(page).tag(etag).build();
+                            });
+                    });
+                });
+            })
+            .onFailure().recoverWithItem(e -> {
+                log.error("Failed to list messages");
+                return new ActionError(e, Tuple2.of("oidcInstance", this.checkinConfig.server())).toResponse();
+            });
+
+        return result;
+    }
+
+    /**
+     * Export all notification messages of the caller.
+     * @param auth The access token needed to call the service
+     * @return Stream of messages, in reverse chronological order
+     */
+    @GET
+    @Path("/messages/export")
+    @SecurityRequirement(name = "OIDC")
+    @Produces(RestMediaType.APPLICATION_NDJSON)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    @RolesAllowed( Role.IMS_USER )
+    @Operation(operationId = "exportMessages", summary = "Export all notification messages",
+               description = "Streams all messages in reverse chronological order, one JSON object per line.\n" +
+                             "If the export fails, the stream ends early.")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200", description = "Exporting",
+                    content = @Content(mediaType = RestMediaType.APPLICATION_NDJSON,
+                    schema = @Schema(implementation = Message.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    public Multi<Message> export(@RestHeader(HttpHeaders.AUTHORIZATION) String auth)
+    {
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+
+        log.info("Exporting messages");
+
+        // The read watermark tells which messages were read
+        return sf.withSession(session -> InboxStatsEntity.getLastReadAllAt(checkinUserId))
+            .onItem().transformToMulti(readAllAt -> messageExport.export(checkinUserId, readAllAt))
+            .onFailure().invoke(e -> {
+                log.errorf("Failed to export messages: %s", e.getMessage());
+            })
+            .onCompletion().invoke(() -> {
+                log.info("Exported messages");
+            });
+    }
+
+    /**
+     * Search the notification messages of the caller.
+     * @param auth The access token needed to call the service
+     * @param q The search terms
+     * @param from_ The cursor returned as part of the link to the next page
+     * @param limit_ The maximum number of elements to return
+     * @return API Response, wraps an {@link PageOfMessages} or an ActionError entity
+     */
+    @GET
+    @Path("/messages/search")
+    @SecurityRequirement(name = "OIDC")
+    @RolesAllowed( Role.IMS_USER )
+    @Operation(operationId = "searchMessages",
+            summary = "Search notification messages",
+            description = "Returns the messages that contain the search terms, most relevant first")
+    @APIResponses(value = {
+            @APIResponse(responseCode = "200", description = "Success",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = PageOfMessages.class))),
+            @APIResponse(responseCode = "400", description="Invalid parameters or configuration",
+                    content = @Content(mediaType = MediaType.APPLICATION_JSON,
+                    schema = @Schema(implementation = ActionError.class))),
+            @APIResponse(responseCode = "401", description="Authorization required"),
+            @APIResponse(responseCode = "503", description="Try again later")
+    })
+    public Uni<Response> search(@RestHeader(HttpHeaders.AUTHORIZATION) String auth,
+                                @Context UriInfo uriInfo,
+                                @Context HttpHeaders httpHeaders,
+
+                                @RestQuery("q")
+                                @Parameter(required = true,
+                                           description = "Words to search for. Supports \"quoted phrases\",\n" +
+                                                         "or between alternatives, and -word to exclude words.")
+                                String q,
+
+                                @RestQuery("from")
+                                @Parameter(description = "Position to continue from, use the link to the next page")
+                                String from_,
+
+                                @RestQuery("limit")
+                                @Parameter(description = "Restrict the number of results returned")
+                                @Schema(defaultValue = "100")
+                                int limit_)
+    {
+        final int limit = (0 == limit_) ? 100 : limit_;
+
+        final var checkinUserId = identity.getAttribute(CheckinUser.ATTR_USERID).toString();
+        addToDC("userIdCaller", checkinUserId);
+        addToDC("userNameCaller", identity.getAttribute(CheckinUser.ATTR_FULLNAME));
+        addToDC("processName", imsConfig.group());
+        addToDC("q", q);
+        addToDC("from", from_);
+        addToDC("limit", limit);
+
+        log.info("Searching messages");
+
+        if(null == q || q.isBlank()) {
+            var ae = new ActionError("badRequest", "Search terms are required");
             return Uni.createFrom().item(ae.toResponse());
         }
 
-        LocalDateTime finalFrom = from;
+        SearchCursor after = null;
+        if(null != from_ && !from_.isBlank()) {
+            try {
+                after = SearchCursor.decode(from_);
+            }
+            catch(IllegalArgumentException e) {
+                var ae = new ActionError("badRequest", "Invalid parameter from");
+                return Uni.createFrom().item(ae.toResponse());
+            }
+        }
+
+        final var finalAfter = after;
         Uni<Response> result = Uni.createFrom().nullItem()
 
             .chain(unused -> {
-                return sf.withSession(session -> MessageEntity.getMessages(checkinUserId, finalFrom, limit));
+                // The read watermark tells which messages were read
+                return sf.withSession(session -> InboxStatsEntity.getLastReadAllAt(checkinUserId));
             })
-            .chain(messages -> {
-                // Got messages, success
-                log.info("Got messages");
-                var uri = getRealRequestUri(uriInfo, httpHeaders);
-                var page = new PageOfMessages(uri.toString(), finalFrom, limit, messages);
-                var logCount = messages.size();
-                if(!messages.isEmpty() && logCount == limit) {
-                    var lastLog = messages.get(logCount - 1);
-                    page.setNextPage(lastLog.sentOn, limit);
-                }
+            .chain(readAllAt -> {
+                return messageSearch.search(checkinUserId, q, finalAfter, limit)
+                    .onItem().transform(found -> {
+                        // Got matching messages, success
+                        log.info("Got messages");
+                        var uri = getRealRequestUri(uriInfo, httpHeaders);
+                        var page = new PageOfMessages(uri.toString(), from_, limit, found.messages, readAllAt);
+                        if(null != found.next)
+                            page.setNextPage(found.next.encode(), limit);
 
-                return Uni.createFrom().item(Response.ok(page).build());
+                        return Response.ok(page).build();
+                    });
             })
             .onFailure().recoverWithItem(e -> {
-                log.error("Failed to list messages");
+                log.error("Failed to search messages");
                 return new ActionError(e, Tuple2.of("oidcInstance", this.checkinConfig.server())).toResponse();
             });
 
         return result;
     }
+
+    /**
+     * Build the entity tag of the messages of a user.
+     * Counters are created with the first message of a user, so users without counters
+     * have no messages and get revision 0, which no user with messages has.
+     * @param stats The counters of the user, can be null
+     * @return Weak entity tag from the revision of the counters
+     */
+    private static EntityTag inboxTag(InboxStatsEntity stats)
+    {
+        final long revision = null != stats && null != stats.revision ? stats.revision : 0;
+        return new EntityTag(Long.toString(revision), true);
+    }
 }
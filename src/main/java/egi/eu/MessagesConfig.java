@@ -0,0 +1,316 @@
+package egi.eu;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.runtime.configuration.MemorySizeConverter;
+import io.smallrye.config.ConfigMapping;
+import io.smallrye.config.WithConverter;
+import io.smallrye.config.WithDefault;
+import io.smallrye.config.WithName;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+
+
+/***
+ * The configuration of the messaging
+ */
+@ConfigMapping(prefix = "egi.messages")
+public interface MessagesConfig {
+
+    /***
+     * Maximum number of recipients to insert with a single statement when sending a message
+     * @return Number of recipients per statement
+     */
+    @WithName("insert-chunk-size")
+    @WithDefault("1000")
+    int insertChunkSize();
+
+    /***
+     * Number of messages read from a stream before writing them to the database
+     * @return Number of messages per transaction
+     */
+    @WithName("stream-batch-size")
+    @WithDefault("500")
+    int streamBatchSize();
+
+    /***
+     * Maximum size of a message stream sent with chunked transfer encoding.
+     * All other requests are limited by quarkus.http.limits.max-body-size.
+     * @return Maximum size of the request body
+     */
+    @WithName("stream-max-size")
+    @WithDefault("512M")
+    @WithConverter(MemorySizeConverter.class)
+    MemorySize streamMaxSize();
+
+    /***
+     * Number of messages read with each query when exporting messages
+     * @return Number of messages per query
+     */
+    @WithName("export-fetch-size")
+    @WithDefault("500")
+    int exportFetchSize();
+
+    /***
+     * Whether marking all messages read only records a per-user read watermark,
+     * instead of updating every unread message
+     * @return True to use the read watermark
+     */
+    @WithName("read-watermark")
+    @WithDefault("false")
+    boolean readWatermark();
+
+    /***
+     * Configuration of the background sending of messages
+     * @return Outbox configuration
+     */
+    Outbox outbox();
+
+    interface Outbox {
+
+        /***
+         * How often to check the outbox for messages to send
+         * @return Interval between checks
+         */
+        @WithName("poll-interval")
+        @WithDefault("1S")
+        Duration pollInterval();
+
+        /***
+         * Number of send requests processed in parallel by each instance of the service
+         * @return Number of workers
+         */
+        @WithDefault("4")
+        int workers();
+
+        /***
+         * Maximum number of send requests claimed at once from the outbox
+         * @return Number of requests
+         */
+        @WithName("batch-size")
+        @WithDefault("20")
+        int batchSize();
+
+        /***
+         * Number of times to try sending a message before giving up
+         * @return Maximum number of attempts
+         */
+        @WithName("max-attempts")
+        @WithDefault("5")
+        int maxAttempts();
+
+        /***
+         * How long to wait before trying a failed send request again, doubled after each attempt
+         * @return Delay after the first failed attempt
+         */
+        @WithName("retry-delay")
+        @WithDefault("5S")
+        Duration retryDelay();
+
+        /***
+         * Longest wait between two attempts of a send request
+         * @return Maximum delay between attempts
+         */
+        @WithName("max-retry-delay")
+        @WithDefault("5M")
+        Duration maxRetryDelay();
+
+        /***
+         * Send requests stuck in processing for longer than this are retried,
+         * e.g. after the instance processing them was stopped
+         * @return Duration after which to retry
+         */
+        @WithName("stale-after")
+        @WithDefault("5M")
+        Duration staleAfter();
+    }
+
+    /***
+     * Configuration of the cache of unread message counts
+     * @return Unread cache configuration
+     */
+    @WithName("unread-cache")
+    UnreadCache unreadCache();
+
+    interface UnreadCache {
+
+        /***
+         * Maximum number of users to cache unread message counts for
+         * @return Number of users
+         */
+        @WithDefault("10000")
+        int size();
+
+        /***
+         * How long to use a cached count before reloading it from the database.
+         * Bounds how long counts changed by other instances of the service can be stale.
+         * @return Duration after which counts are reloaded
+         */
+        @WithDefault("1M")
+        Duration ttl();
+    }
+
+    /***
+     * Configuration of the idempotency keys of send requests
+     * @return Idempotency configuration
+     */
+    Idempotency idempotency();
+
+    interface Idempotency {
+
+        /***
+         * Maximum number of send results to keep in memory
+         * @return Number of results
+         */
+        @WithName("cache-size")
+        @WithDefault("10000")
+        int cacheSize();
+
+        /***
+         * How long to remember the result of a send request
+         * @return Duration after which a request with the same key sends messages again
+         */
+        @WithDefault("24H")
+        Duration ttl();
+
+        /***
+         * How often to remove expired send results from the database
+         * @return Interval between purges
+         */
+        @WithName("purge-interval")
+        @WithDefault("1H")
+        Duration purgeInterval();
+    }
+
+    /***
+     * Configuration of the deletion of old messages
+     * @return Retention configuration
+     */
+    Retention retention();
+
+    interface Retention {
+
+        /***
+         * Whether to delete messages that are past their retention
+         * @return True to purge messages in the background
+         */
+        @WithDefault("false")
+        boolean enabled();
+
+        /***
+         * How often to look for messages to delete
+         * @return Interval between purges
+         */
+        @WithDefault("1H")
+        Duration interval();
+
+        /***
+         * Maximum number of messages deleted in a single transaction
+         * @return Number of messages
+         */
+        @WithName("batch-size")
+        @WithDefault("1000")
+        int batchSize();
+
+        /***
+         * How long to wait between batches, spreads the load of large purges
+         * @return Pause between batches
+         */
+        @WithName("batch-pause")
+        @WithDefault("100MS")
+        Duration batchPause();
+
+        /***
+         * How long to keep messages in categories without their own retention
+         * @return Maximum age, empty or zero to keep messages forever
+         */
+        @WithName("max-age")
+        Optional<Duration> maxAge();
+
+        /***
+         * How long to keep messages of specific categories
+         * @return Maximum age by category, zero to keep messages forever
+         */
+        @WithName("category-max-age")
+        Map<String, Duration> categoryMaxAge();
+
+        /***
+         * Maximum number of messages to keep for each user, the oldest ones are deleted first
+         * @return Number of messages, zero for no limit
+         */
+        @WithName("max-messages-per-user")
+        @WithDefault("0")
+        int maxMessagesPerUser();
+    }
+
+    /***
+     * Configuration of pushing new messages to connected clients
+     * @return Push configuration
+     */
+    Push push();
+
+    interface Push {
+
+        /***
+         * How often to send an event on idle streams, so that proxies do not close them
+         * @return Interval between heartbeats
+         */
+        @WithDefault("30S")
+        Duration heartbeat();
+
+        /***
+         * Maximum number of events to buffer for a slow client before its stream is closed
+         * @return Number of events
+         */
+        @WithName("buffer-size")
+        @WithDefault("256")
+        int bufferSize();
+
+        /***
+         * Number of latest messages sent when a client connects to the inbox socket
+         * @return Number of messages
+         */
+        @WithName("page-size")
+        @WithDefault("20")
+        int pageSize();
+
+        /***
+         * Maximum number of read acks applied with a single statement
+         * @return Number of acks
+         */
+        @WithName("ack-batch-size")
+        @WithDefault("100")
+        int ackBatchSize();
+
+        /***
+         * How long to collect read acks before applying them
+         * @return Maximum delay of acks
+         */
+        @WithName("ack-delay")
+        @WithDefault("500MS")
+        Duration ackDelay();
+
+        /***
+         * Maximum time a long-polling request waits for the unread count to change
+         * @return Maximum wait
+         */
+        @WithName("max-wait")
+        @WithDefault("60S")
+        Duration maxWait();
+
+        /***
+         * Whether to exchange events with the other instances of the service
+         * @return True to publish and listen for events in the database
+         */
+        @WithDefault("true")
+        boolean cluster();
+
+        /***
+         * The PostgreSQL notification channel used to exchange events between instances
+         * @return Channel name
+         */
+        @WithDefault("msg_inbox")
+        String channel();
+    }
+}
@@ -0,0 +1,205 @@
+package egi.eu;
+
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.pgclient.PgPool;
+import io.vertx.mutiny.sqlclient.Row;
+import io.vertx.mutiny.sqlclient.Tuple;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import egi.eu.entity.MessageEntity;
+import egi.eu.entity.OutboxEntity;
+import egi.eu.model.Message;
+
+
+/***
+ * Sends the messages queued in the outbox in the background.
+ * Send requests are claimed with SKIP LOCKED, so multiple instances of the service can share the work.
+ */
+@ApplicationScoped
+public class OutboxProcessor {
+
+    private static final Logger log = Logger.getLogger(OutboxProcessor.class);
+
+    // Claims pending send requests, so that no other worker picks them up
+    private static final String CLAIM_REQUESTS =
+            "UPDATE message_outbox SET status = '" + OutboxEntity.STATUS_PROCESSING + "', " +
+            "attempts = attempts + 1, changedOn = $2 " +
+            "WHERE id IN (SELECT id FROM message_outbox WHERE status = '" + OutboxEntity.STATUS_PENDING + "' " +
+                         "AND (nextAttemptAt IS NULL OR nextAttemptAt <= $2) " +
+                         "ORDER BY id LIMIT $1 FOR UPDATE SKIP LOCKED) " +
+            "RETURNING id, message, category, link, checkinUserId, process, role, senderUserId, attempts";
+
+    // Returns send requests abandoned by a stopped worker to the queue, or gives up on them after too
+    // many attempts. Requests that are being sent are locked by their worker and skipped. Counts as an
+    // attempt, so that the abandoned worker can tell that it lost its claim.
+    private static final String REQUEUE_STALE =
+            "UPDATE message_outbox SET attempts = attempts + 1, changedOn = $2, " +
+            "status = CASE WHEN attempts + 1 >= $3 THEN '" + OutboxEntity.STATUS_FAILED + "' " +
+                          "ELSE '" + OutboxEntity.STATUS_PENDING + "' END, " +
+            "error = CASE WHEN attempts + 1 >= $3 THEN 'Processing did not complete' ELSE error END, " +
+            "nextAttemptAt = CASE WHEN attempts + 1 >= $3 THEN NULL ELSE $4 END " +
+            "WHERE id IN (SELECT id FROM message_outbox WHERE status = '" + OutboxEntity.STATUS_PROCESSING + "' " +
+                         "AND changedOn < $1 FOR UPDATE SKIP LOCKED)";
+
+    // Locks a claimed send request until the messages are committed, fails if the claim was lost
+    private static final String LOCK_CLAIM =
+            "SELECT id FROM message_outbox " +
+            "WHERE id = $1 AND status = '" + OutboxEntity.STATUS_PROCESSING + "' AND attempts = $2 FOR UPDATE";
+
+    private static final String MARK_SENT =
+            "UPDATE message_outbox SET status = '" + OutboxEntity.STATUS_SENT + "', " +
+            "sentMessages = $2, error = NULL, changedOn = $3 WHERE id = $1";
+
+    private static final String MARK_FAILED =
+            "UPDATE message_outbox SET status = $2, error = $3, changedOn = $4, nextAttemptAt = $5 " +
+            "WHERE id = $1 AND status = '" + OutboxEntity.STATUS_PROCESSING + "' AND attempts = $6";
+
+    @Inject
+    PgPool client;
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    MessageWriter writer;
+
+    @Inject
+    Recipients recipients;
+
+
+    /***
+     * Send the pending messages in the outbox.
+     * @return Completes when the claimed send requests were processed
+     */
+    @Scheduled(every = "${egi.messages.outbox.poll-interval:1S}", // Same default as MessagesConfig.Outbox
+               concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public Uni<Void> processPending() {
+
+        final var outbox = messagesConfig.outbox();
+        final var now = LocalDateTime.now();
+        final var staleBefore = now.minus(outbox.staleAfter());
+
+        var requeue = Tuple.of(staleBefore, now, outbox.maxAttempts(), now.plus(outbox.retryDelay()));
+        return client.preparedQuery(REQUEUE_STALE).execute(requeue)
+            .chain(requeued -> {
+                if(requeued.rowCount() > 0)
+                    log.warnf("Requeued %d stale send request(s)", requeued.rowCount());
+
+                return client.preparedQuery(CLAIM_REQUESTS).execute(Tuple.of(outbox.batchSize(), now));
+            })
+            .chain(claimed -> {
+                if(0 == claimed.rowCount())
+                    return Uni.createFrom().voidItem();
+
+                log.debugf("Processing %d send request(s)", claimed.rowCount());
+
+                List<Row> requests = new ArrayList<>();
+                claimed.forEach(requests::add);
+
+                return Multi.createFrom().iterable(requests)
+                    .onItem().transformToUni(this::process).merge(Math.max(1, outbox.workers()))
+                    .onItem().ignoreAsUni();
+            })
+            .onFailure().invoke(e -> {
+                log.errorf("Failed to process outbox: %s", e.getMessage());
+            })
+            .onFailure().recoverWithNull();
+    }
+
+    /***
+     * Send the message of a claimed send request.
+     * The messages and the new status of the request are committed in the same transaction,
+     * nothing is sent if the request was requeued since it was claimed.
+     * @param request The claimed send request
+     * @return Completes when the request was processed, never fails
+     */
+    private Uni<Void> process(Row request) {
+
+        final long requestId = request.getLong("id");
+        final int attempts = request.getInteger("attempts");
+        final var senderUserId = request.getString("senderuserid");
+
+        var message = new Message();
+        message.message = request.getString("message");
+        message.category = request.getString("category");
+        message.url = request.getString("link");
+        message.checkinUserId = request.getString("checkinuserid");
+        message.process = request.getString("process");
+        message.role = request.getString("role");
+
+        return recipients.resolveAsync(message, senderUserId, null)
+            .chain(userIds -> {
+                return client.withTransaction(connection -> {
+                    return connection.preparedQuery(LOCK_CLAIM).execute(Tuple.of(requestId, attempts))
+                        .chain(claim -> {
+                            if(0 == claim.rowCount())
+                                // Requeued as stale, it is no longer ours to send
+                                return Uni.createFrom().<List<MessageEntity>>nullItem();
+
+                            return writer.send(connection, message, userIds)
+                                .call(sent -> connection.preparedQuery(MARK_SENT)
+                                                        .execute(Tuple.of(requestId, sent.size(), LocalDateTime.now())));
+                        });
+                });
+            })
+            .onItem().invoke(sent -> {
+                if(null == sent) {
+                    log.warnf("Send request %d was requeued, not sending it", requestId);
+                    return;
+                }
+
+                writer.committed(sent);
+                log.debugf("Send request %d complete", requestId);
+            })
+            .replaceWithVoid()
+            .onFailure().recoverWithUni(e -> {
+                // Retry later, unless we tried too many times
+                final boolean giveUp = attempts >= messagesConfig.outbox().maxAttempts();
+                final var status = giveUp ? OutboxEntity.STATUS_FAILED : OutboxEntity.STATUS_PENDING;
+                final var now = LocalDateTime.now();
+                final var nextAttemptAt = giveUp ? null : now.plus(retryDelay(attempts));
+                log.errorf("Failed to process send request %d (attempt %d)", requestId, attempts);
+
+                var error = null != e.getMessage() ? e.getMessage() : e.getClass().getSimpleName();
+                if(error.length() > 1024)
+                    error = error.substring(0, 1024);
+
+                var params = Tuple.tuple()
+                        .addLong(requestId)
+                        .addString(status)
+                        .addString(error)
+                        .addLocalDateTime(now)
+                        .addLocalDateTime(nextAttemptAt)
+                        .addInteger(attempts);
+                return client.preparedQuery(MARK_FAILED).execute(params)
+                    .replaceWithVoid()
+                    .onFailure().recoverWithNull();
+            });
+    }
+
+    /***
+     * Get how long to wait before trying a failed send request again.
+     * The delay doubles with each attempt, so that an outage of Check-in does not use up all attempts at once.
+     * @param attempts The number of attempts made so far
+     * @return Delay before the next attempt
+     */
+    Duration retryDelay(int attempts) {
+        final var outbox = messagesConfig.outbox();
+        final var max = outbox.maxRetryDelay();
+        var delay = outbox.retryDelay();
+        for(int i = 1; i < attempts && delay.compareTo(max) < 0; i++)
+            delay = delay.multipliedBy(2);
+
+        return delay.compareTo(max) < 0 ? delay : max;
+    }
+}
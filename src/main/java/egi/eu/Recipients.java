@@ -0,0 +1,141 @@
+package egi.eu;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.tuples.Tuple2;
+import org.jboss.logging.Logger;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import egi.checkin.Checkin;
+import egi.checkin.CheckinConfig;
+import egi.eu.model.Message;
+
+
+/***
+ * Resolves the recipients of notification messages.
+ */
+@ApplicationScoped
+public class Recipients {
+
+    private static final Logger log = Logger.getLogger(Recipients.class);
+
+    @Inject
+    CheckinConfig checkinConfig;
+
+    @Inject
+    IntegratedManagementSystemConfig imsConfig;
+
+
+    /***
+     * Check if a message is addressed to all users holding a role.
+     * @param message The message to check
+     * @return True if the message is addressed to a role
+     */
+    public static boolean sendToRole(Message message) {
+        return null != message.process || null != message.role;
+    }
+
+    /***
+     * Check if the addressee(s) of a message are specified correctly.
+     * @param message The message to check
+     * @return True if the message is addressed either to a user or to a role
+     */
+    public static boolean validAddress(Message message) {
+        if(sendToRole(message))
+            return null != message.process && null != message.role;
+
+        return null != message.checkinUserId && !message.checkinUserId.isBlank();
+    }
+
+    /***
+     * Get the recipients of a message.
+     * When the message is addressed to a role, the users holding the role are fetched from Check-in
+     * and the sender is excluded.
+     * @param message The message to send
+     * @param senderUserId The Check-in user ID of the sender
+     * @param stub Mock stub to select in tests, can be null
+     * @return Check-in user IDs of the recipients
+     */
+    public Uni<List<String>> resolveAsync(Message message, String senderUserId, String stub) {
+
+        if(!sendToRole(message)) {
+            var recipients = new ArrayList<String>();
+            recipients.add(message.checkinUserId);
+            return Uni.createFrom().item(recipients);
+        }
+
+        // Get REST client for Check-in
+        var checkin = new Checkin();
+        if(!checkin.init(this.checkinConfig, this.imsConfig, stub))
+            // Could not get REST client
+            return Uni.createFrom().failure(new ActionException("invalidConfig"));
+
+        // List users holding role
+        return checkin.listUsersWithGroupRolesAsync(message.process, message.role)
+            .onItem().transform(usersWithRole -> {
+                var recipients = new ArrayList<String>();
+                for(var user : usersWithRole) {
+                    // When sending to all users with role, exclude sender
+                    if(user.checkinUserId.equals(senderUserId))
+                        continue;
+
+                    recipients.add(user.checkinUserId);
+                }
+
+                log.debugf("Resolved %d recipient(s) holding role %s in %s",
+                           recipients.size(), message.role, message.process);
+                return recipients;
+            });
+    }
+
+    /***
+     * Get the recipients of several messages.
+     * Users holding a role are fetched from Check-in only once per distinct process and role.
+     * @param messages The messages to send
+     * @param senderUserId The Check-in user ID of the sender
+     * @param stub Mock stub to select in tests, can be null
+     * @return Check-in user IDs of the recipients, in the same order as the messages
+     */
+    public Uni<List<List<String>>> resolveAllAsync(List<Message> messages, String senderUserId, String stub) {
+
+        // Collect the distinct roles the messages are addressed to
+        var roles = new LinkedHashSet<Tuple2<String, String>>();
+        for(var message : messages)
+            if(sendToRole(message))
+                roles.add(Tuple2.of(message.process, message.role));
+
+        log.debugf("Resolving recipients of %d message(s) addressed to %d role(s)", messages.size(), roles.size());
+
+        final Map<Tuple2<String, String>, List<String>> usersWithRole = new HashMap<>();
+        return Multi.createFrom().iterable(roles)
+            .onItem().transformToUniAndConcatenate(role -> {
+                // List users holding this role
+                var message = new Message();
+                message.process = role.getItem1();
+                message.role = role.getItem2();
+
+                return resolveAsync(message, senderUserId, stub)
+                        .onItem().invoke(userIds -> usersWithRole.put(role, userIds));
+            })
+            .collect().last()
+            .onItem().transform(unused -> {
+                var recipients = new ArrayList<List<String>>();
+                for(var message : messages) {
+                    if(sendToRole(message))
+                        recipients.add(usersWithRole.get(Tuple2.of(message.process, message.role)));
+                    else
+                        recipients.add(List.of(message.checkinUserId));
+                }
+
+                return recipients;
+            });
+    }
+}
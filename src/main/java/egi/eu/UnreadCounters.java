@@ -0,0 +1,140 @@
+package egi.eu;
+
+import io.smallrye.mutiny.Uni;
+import org.hibernate.reactive.mutiny.Mutiny;
+import org.jboss.logging.Logger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import java.util.Collection;
+import java.util.Set;
+
+import egi.eu.entity.InboxStatsEntity;
+
+
+/***
+ * Caches the number of unread messages of each user.
+ * Counters are loaded from the user_inbox_stats table on first use, then kept up to date as messages are
+ * sent and read. Call the update methods only after the corresponding transaction was committed.
+ */
+@ApplicationScoped
+public class UnreadCounters {
+
+    private static final Logger log = Logger.getLogger(UnreadCounters.class);
+
+    @Inject
+    MessagesConfig messagesConfig;
+
+    @Inject
+    Mutiny.SessionFactory sf;
+
+    // Number of slots in the generations of the counters, users share a slot when their hashes collide
+    private static final int GENERATION_SLOTS = 256;
+
+    private LruCache<String, Long> counters;
+
+    // Incremented whenever the count of a user changes, so that counts loaded from the database while
+    // they changed are not cached. Guarded by itself, together with the updates of the cache.
+    private final long[] generations = new long[GENERATION_SLOTS];
+
+
+    /***
+     * Setup the cache
+     */
+    @PostConstruct
+    void init() {
+        var config = messagesConfig.unreadCache();
+        counters = new LruCache<>(config.size(), config.ttl());
+    }
+
+    /***
+     * Get the number of unread messages of a user.
+     * @param checkinUserId The user to count unread messages for
+     * @return Unread message count
+     */
+    public Uni<Long> getAsync(String checkinUserId) {
+        var unread = counters.get(checkinUserId);
+        if(null != unread)
+            return Uni.createFrom().item(unread);
+
+        final var generation = generation(checkinUserId);
+
+        log.debug("Loading unread message count");
+        return sf.withSession(session -> InboxStatsEntity.countUnread(checkinUserId))
+                 .onItem().invoke(count -> {
+                     synchronized(generations) {
+                         // Only cache if the count did not change while we were loading it
+                         if(generation == generation(checkinUserId))
+                             counters.put(checkinUserId, count);
+                     }
+                 });
+    }
+
+    /***
+     * Get the generation of the count of a user.
+     * @param checkinUserId The user to get the generation for
+     * @return Changes whenever the count of the user changes
+     */
+    private long generation(String checkinUserId) {
+        synchronized(generations) {
+            return generations[Math.floorMod(checkinUserId.hashCode(), GENERATION_SLOTS)];
+        }
+    }
+
+    /***
+     * Change the count of a user.
+     * @param checkinUserId The user whose count changed
+     * @param change Updates the cached count
+     */
+    private void change(String checkinUserId, Runnable change) {
+        synchronized(generations) {
+            generations[Math.floorMod(checkinUserId.hashCode(), GENERATION_SLOTS)]++;
+            change.run();
+        }
+    }
+
+    /***
+     * New messages were sent.
+     * @param recipients The recipients of the messages, one entry for each message
+     */
+    public void added(Collection<String> recipients) {
+        for(var checkinUserId : recipients)
+            change(checkinUserId, () -> counters.update(checkinUserId, (userId, unread) -> unread + 1));
+    }
+
+    /***
+     * Messages were marked as read.
+     * @param checkinUserId The user who read the messages
+     * @param count The number of messages that changed from unread to read
+     */
+    public void read(String checkinUserId, long count) {
+        if(count > 0)
+            change(checkinUserId, () -> counters.update(checkinUserId, (userId, unread) -> Math.max(0, unread - count)));
+    }
+
+    /***
+     * The unread messages of a user were changed by another instance of the service.
+     * @param checkinUserId The user whose count is no longer valid
+     */
+    public void invalidate(String checkinUserId) {
+        change(checkinUserId, () -> counters.remove(checkinUserId));
+    }
+
+    /***
+     * Get the users whose unread counts are cached.
+     * @return Check-in user IDs
+     */
+    public Set<String> cachedUsers() {
+        return counters.keys();
+    }
+
+    /***
+     * All messages were marked as read.
+     * @param checkinUserId The user who read the messages
+     */
+    public void allRead(String checkinUserId) {
+        change(checkinUserId, () -> counters.put(checkinUserId, 0L));
+    }
+}
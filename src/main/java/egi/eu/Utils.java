@@ -1,5 +1,8 @@
 package egi.eu;
 
+import io.quarkus.vertx.core.runtime.context.VertxContextSafetyToggle;
+import io.smallrye.common.vertx.VertxContext;
+import io.vertx.core.Vertx;
 import org.jboss.logging.Logger;
 
 import java.util.HashMap;
@@ -29,6 +32,18 @@ public class Utils {
         return true;
     }
 
+    /***
+     * Run an action on a safe (isolated) Vert.x context.
+     * Needed to use database sessions outside of requests, e.g. from database notifications.
+     * @param vertx The Vert.x instance
+     * @param action The action to run
+     */
+    public static void runOnSafeContext(Vertx vertx, Runnable action) {
+        var context = VertxContext.getOrCreateDuplicatedContext(vertx);
+        VertxContextSafetyToggle.setContextSafe(context, true);
+        context.runOnContext(unused -> action.run());
+    }
+
     /***
      * Get default value for a type
      * @param clazz The type to get a default value for
@@ -0,0 +1,144 @@
+package egi.eu.entity;
+
+import org.hibernate.annotations.UpdateTimestamp;
+import org.hibernate.reactive.common.AffectedEntities;
+import io.quarkus.hibernate.reactive.panache.Panache;
+import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.smallrye.mutiny.Uni;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Message counters of a user, updated in the same transaction as the messages
+ */
+@Entity
+@Table(name = "user_inbox_stats")
+public class InboxStatsEntity extends PanacheEntityBase {
+
+    @Id
+    @Column(length = 120)
+    public String checkinUserId;
+
+    public Long unread;
+
+    public Long total;
+
+    // Messages sent at or before this are read, regardless of their wasRead flag
+    public LocalDateTime lastReadAllAt;
+
+    // Incremented on every change of the messages of the user, used as entity tag
+    public Long revision;
+
+    @UpdateTimestamp
+    public LocalDateTime changedOn;
+
+
+    // Moves the read watermark of a user. Users without counters yet get them created,
+    // counting their messages only then. Upserts, as messages may be sent to the user concurrently.
+    private static final String READ_ALL =
+            "WITH updated AS (UPDATE user_inbox_stats SET unread = 0, lastReadAllAt = :readAllAt, " +
+                                    "changedOn = :readAllAt, revision = COALESCE(revision, 0) + 1 " +
+                             "WHERE checkinUserId = :checkinUserId RETURNING checkinUserId) " +
+            "INSERT INTO user_inbox_stats (checkinUserId, unread, total, lastReadAllAt, revision, changedOn) " +
+            "SELECT :checkinUserId, 0, (SELECT COUNT(*) FROM messages m WHERE m.checkinUserId = :checkinUserId), " +
+                   ":readAllAt, 1, :readAllAt " +
+            "WHERE NOT EXISTS (SELECT 1 FROM updated) " +
+            "ON CONFLICT (checkinUserId) DO UPDATE SET unread = 0, lastReadAllAt = EXCLUDED.lastReadAllAt, " +
+                   "changedOn = EXCLUDED.changedOn, revision = COALESCE(user_inbox_stats.revision, 0) + 1";
+
+
+    /***
+     * Constructor
+     */
+    public InboxStatsEntity() { super(); }
+
+    /***
+     * Get the number of unread messages for a user.
+     * Users without counters yet (e.g. with messages older than the counters) have their messages counted.
+     * @param checkinUserId The user to check unread messages for
+     * @return Unread message count
+     */
+    public static Uni<Long> countUnread(String checkinUserId) {
+
+        return InboxStatsEntity.<InboxStatsEntity>findById(checkinUserId)
+            .chain(stats -> {
+                if(null != stats)
+                    return Uni.createFrom().item(stats.unread);
+
+                return MessageEntity.countUnreadMessages(checkinUserId);
+            });
+    }
+
+    /***
+     * Get the counters of a user.
+     * @param checkinUserId The user to get the counters of
+     * @return Counters, null if none yet
+     */
+    public static Uni<InboxStatsEntity> getStats(String checkinUserId) {
+
+        return findById(checkinUserId);
+    }
+
+    /***
+     * Get the date and time the user marked all messages as read using the read watermark.
+     * @param checkinUserId The user to check
+     * @return Read watermark, null if none
+     */
+    public static Uni<LocalDateTime> getLastReadAllAt(String checkinUserId) {
+
+        return InboxStatsEntity.<InboxStatsEntity>findById(checkinUserId)
+            .onItem().transform(stats -> null != stats ? stats.lastReadAllAt : null);
+    }
+
+    /***
+     * Mark all messages of a user as read by moving the read watermark, without updating the messages.
+     * @param checkinUserId The user who read all messages
+     * @param readAllAt Messages sent at or before this are considered read
+     * @return Number of updated counters
+     */
+    public static Uni<Integer> readAll(String checkinUserId, LocalDateTime readAllAt) {
+
+        return Panache.getSession().chain(session -> {
+            return session.createNativeQuery(READ_ALL, new AffectedEntities(InboxStatsEntity.class))
+                          .setParameter("checkinUserId", checkinUserId)
+                          .setParameter("readAllAt", readAllAt)
+                          .executeUpdate();
+        })
+        .replaceWith(1);
+    }
+
+    /***
+     * Decrease the number of unread messages for a user.
+     * @param checkinUserId The user who read messages
+     * @param count The number of messages that changed from unread to read
+     * @return Number of updated counters
+     */
+    public static Uni<Integer> read(String checkinUserId, long count) {
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("checkinUserId", checkinUserId);
+        params.put("count", count);
+        params.put("now", LocalDateTime.now());
+        return update("unread = CASE WHEN unread > :count THEN unread - :count ELSE 0 END, changedOn = :now, " +
+                      "revision = COALESCE(revision, 0) + 1 " +
+                      "WHERE checkinUserId = :checkinUserId", params);
+    }
+
+    /***
+     * Set the number of unread messages for a user to zero.
+     * @param checkinUserId The user who read all messages
+     * @return Number of updated counters
+     */
+    public static Uni<Integer> allRead(String checkinUserId) {
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("checkinUserId", checkinUserId);
+        params.put("now", LocalDateTime.now());
+        return update("unread = 0, changedOn = :now, revision = COALESCE(revision, 0) + 1 " +
+                      "WHERE checkinUserId = :checkinUserId", params);
+    }
+}
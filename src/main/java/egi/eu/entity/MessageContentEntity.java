@@ -0,0 +1,54 @@
+package egi.eu.entity;
+
+import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.smallrye.common.constraint.NotNull;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+import egi.eu.model.Message;
+
+
+/**
+ * Content of a notification message, shared by all its recipients
+ */
+@Entity
+@Table(name = "message_contents")
+public class MessageContentEntity extends PanacheEntityBase {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Long id;
+
+    @Column(length = 2048)
+    @NotNull
+    public String message;
+
+    @Column(length = 10)
+    public String category;
+
+    @Column(length = 256)
+    public String link;
+
+    public LocalDateTime sentOn;
+
+
+    /***
+     * Constructor
+     */
+    public MessageContentEntity() { super(); }
+
+    /***
+     * Copy constructor
+     * @param message The notification message
+     * @param sentOn The date and time the message was sent
+     */
+    public MessageContentEntity(Message message, LocalDateTime sentOn) {
+        super();
+
+        this.message = message.message;
+        this.category = message.category;
+        this.link = message.url;
+        this.sentOn = sentOn;
+    }
+}
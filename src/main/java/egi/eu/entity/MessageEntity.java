@@ -1,8 +1,8 @@
 package egi.eu.entity;
 
 import org.hibernate.annotations.UpdateTimestamp;
+import io.quarkus.hibernate.reactive.panache.Panache;
 import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
-import io.quarkus.panache.common.Page;
 import io.smallrye.common.constraint.NotNull;
 import io.smallrye.mutiny.Uni;
 import jakarta.persistence.*;
@@ -11,34 +11,38 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import egi.eu.model.Message;
+import egi.eu.model.MessageCursor;
 
 
 /**
- * Notification message
+ * Delivery of a notification message to a recipient.
+ * The content of the message is stored once in {@link MessageContentEntity}.
  */
 @Entity
-@Table(name = "messages")
+@Table(name = "messages") // Indexes are created by the migrations in db/migration
 public class MessageEntity extends PanacheEntityBase {
 
+    // Condition for unread messages (aliased m), messages sent before the recipient
+    // marked all messages read are considered read, see {@link InboxStatsEntity#lastReadAllAt}
+    public static final String UNREAD = "m.wasRead = false AND NOT EXISTS (SELECT s FROM InboxStatsEntity s " +
+                                        "WHERE s.checkinUserId = m.checkinUserId AND s.lastReadAllAt >= m.sentOn)";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     public Long id;
 
-    @Column(length = 2048)
+    @ManyToOne(fetch = FetchType.LAZY, cascade = CascadeType.PERSIST)
+    @JoinColumn(name = "contentId")
     @NotNull
-    public String message;
-
-    @Column(length = 10)
-    public String category;
-
-    @Column(length = 256)
-    public String link;
+    public MessageContentEntity content;
 
+    @NotNull
     public Boolean wasRead;
 
     @Column(length = 120)
@@ -63,14 +67,26 @@ public class MessageEntity extends PanacheEntityBase {
     public MessageEntity(Message message) {
         super();
 
-        this.message = message.message;
-        this.category = message.category;
-        this.link = message.url;
         this.checkinUserId = message.checkinUserId;
         this.wasRead = false;
         this.sentOn = ZonedDateTime.now(ZoneOffset.UTC)
                             .withZoneSameInstant(ZoneId.systemDefault())
                             .toLocalDateTime();
+        this.content = new MessageContentEntity(message, this.sentOn);
+    }
+
+    /***
+     * Construct delivery of existing content
+     * @param content The content of the notification message
+     * @param checkinUserId The recipient of the message
+     */
+    public MessageEntity(MessageContentEntity content, String checkinUserId) {
+        super();
+
+        this.content = content;
+        this.checkinUserId = checkinUserId;
+        this.wasRead = false;
+        this.sentOn = content.sentOn;
     }
 
     /***
@@ -84,19 +100,77 @@ public class MessageEntity extends PanacheEntityBase {
     }
 
     /***
-     * Get messages for a user that are older than the specified datetime, in reverse chronological order.
+     * Get messages for a user in reverse chronological order, using keyset pagination.
+     * Only the columns needed by the API are selected, and the rows are returned as read-only
+     * {@link Message} objects, not as entities tracked by the session.
      * @param checkinUserId The user to fetch messages for
-     * @param from The date and time from where to start loading logs
-     * @param limit The maximum number of logs to return
-     * @return Message entities
+     * @param after The position after which to start loading messages, null to start with the newest
+     * @param limit The maximum number of messages to return
+     * @return Messages, their read flag does not consider the read watermark of the user
      */
-    public static Uni<List<MessageEntity>> getMessages(String checkinUserId, LocalDateTime from, int limit) {
+    public static Uni<List<Message>> getMessages(String checkinUserId, MessageCursor after, int limit) {
+        return getMessages(checkinUserId, null, false, null, after, limit);
+    }
+
+    /***
+     * Get the messages of a user that match some criteria, in reverse chronological order.
+     * The criteria are applied by the database, so only matching messages are loaded.
+     * @param checkinUserId The user to fetch messages for
+     * @param category Only return messages in this category, null for all categories
+     * @param unreadOnly Only return unread messages, considering the read watermark of the user
+     * @param until Only return messages sent at or before this, null for no limit
+     * @param after The position after which to start loading messages, null to start with the newest
+     * @param limit The maximum number of messages to return
+     * @return Messages, their read flag does not consider the read watermark of the user
+     */
+    public static Uni<List<Message>> getMessages(String checkinUserId, String category, boolean unreadOnly,
+                                                 LocalDateTime until, MessageCursor after, int limit) {
+
+        var where = new StringBuilder("WHERE m.checkinUserId = :checkinUserId ");
+        if(null != after)
+            // Row value comparison, resolved as a range scan of the index
+            where.append("AND (m.sentOn, m.id) < (:sentOn, :id) ");
+        if(null != until)
+            where.append("AND m.sentOn <= :until ");
+        if(unreadOnly)
+            // Matches the partial index of unread messages
+            where.append("AND ").append(UNREAD).append(" ");
+        if(null != category)
+            where.append("AND c.category = :category ");
+
+        final var query = "SELECT new egi.eu.model.Message(m.id, c.message, c.category, c.link, m.wasRead, m.sentOn) " +
+                          "FROM MessageEntity m JOIN m.content c " + where +
+                          "ORDER BY m.sentOn DESC, m.id DESC";
+
+        return Panache.getSession().chain(session -> {
+            var select = session.createSelectionQuery(query, Message.class)
+                                .setParameter("checkinUserId", checkinUserId)
+                                .setMaxResults(limit);
+            if(null != after)
+                select.setParameter("sentOn", after.sentOn)
+                      .setParameter("id", after.id);
+            if(null != until)
+                select.setParameter("until", until);
+            if(null != category)
+                select.setParameter("category", category);
+
+            return select.getResultList();
+        });
+    }
+
+    /***
+     * Get the deliveries of some message contents to some users.
+     * @param contentIds The Ids of the contents
+     * @param checkinUserIds The recipients to fetch deliveries for
+     * @return Message entities, with their content loaded
+     */
+    public static Uni<List<MessageEntity>> getDeliveries(Collection<Long> contentIds, Collection<String> checkinUserIds) {
 
         Map<String, Object> params = new HashMap<>();
-        params.put("checkinUserId", checkinUserId);
-        params.put("from", from);
-        return find("checkinUserId = :checkinUserId AND sentOn < :from ORDER BY sentOn DESC", params)
-                .page(Page.ofSize(limit))
+        params.put("contentIds", contentIds);
+        params.put("checkinUserIds", checkinUserIds);
+        return find("FROM MessageEntity m JOIN FETCH m.content c " +
+                    "WHERE c.id IN :contentIds AND m.checkinUserId IN :checkinUserIds", params)
                 .list();
     }
 
@@ -109,7 +183,51 @@ public class MessageEntity extends PanacheEntityBase {
 
         Map<String, Object> params = new HashMap<>();
         params.put("checkinUserId", checkinUserId);
-        return find("checkinUserId = :checkinUserId AND wasRead = false", params).list();
+        return find("FROM MessageEntity m WHERE m.checkinUserId = :checkinUserId AND " + UNREAD, params).list();
+    }
+
+    /***
+     * Mark an unread message of a user as read, with a single statement.
+     * @param messageId The Id of the message
+     * @param checkinUserId The user the message must belong to
+     * @return Number of messages marked read, 0 when no such message, not owned by the user, or already read
+     */
+    public static Uni<Integer> markRead(Long messageId, String checkinUserId) {
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("id", messageId);
+        params.put("checkinUserId", checkinUserId);
+        params.put("now", LocalDateTime.now());
+        return update("UPDATE MessageEntity m SET m.wasRead = true, m.changedOn = :now " +
+                      "WHERE m.id = :id AND m.checkinUserId = :checkinUserId AND " + UNREAD, params);
+    }
+
+    /***
+     * Get the owner of a message, without loading the message.
+     * @param messageId The Id of the message
+     * @return Check-in user ID of the recipient, null if no such message
+     */
+    public static Uni<String> getRecipient(Long messageId) {
+
+        return Panache.getSession().chain(session -> {
+            return session.createSelectionQuery("SELECT m.checkinUserId FROM MessageEntity m WHERE m.id = :id", String.class)
+                          .setParameter("id", messageId)
+                          .getSingleResultOrNull();
+        });
+    }
+
+    /***
+     * Mark all unread messages of a user as read, with a single statement.
+     * @param checkinUserId The user to mark messages read for
+     * @return Number of messages marked read
+     */
+    public static Uni<Integer> markAllRead(String checkinUserId) {
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("checkinUserId", checkinUserId);
+        params.put("now", LocalDateTime.now());
+        return update("UPDATE MessageEntity m SET m.wasRead = true, m.changedOn = :now " +
+                      "WHERE m.checkinUserId = :checkinUserId AND " + UNREAD, params);
     }
 
     /***
@@ -121,7 +239,7 @@ public class MessageEntity extends PanacheEntityBase {
 
         Map<String, Object> params = new HashMap<>();
         params.put("checkinUserId", checkinUserId);
-        return count("checkinUserId = :checkinUserId AND wasRead = false", params);
+        return count("FROM MessageEntity m WHERE m.checkinUserId = :checkinUserId AND " + UNREAD, params);
     }
 
 }
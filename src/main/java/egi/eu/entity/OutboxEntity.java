@@ -0,0 +1,112 @@
+package egi.eu.entity;
+
+import org.hibernate.annotations.UpdateTimestamp;
+import io.quarkus.hibernate.reactive.panache.PanacheEntityBase;
+import io.smallrye.common.constraint.NotNull;
+import io.smallrye.mutiny.Uni;
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import egi.eu.model.Message;
+
+
+/**
+ * Request to send a notification message, processed in the background
+ */
+@Entity
+@Table(name = "message_outbox")
+public class OutboxEntity extends PanacheEntityBase {
+
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_PROCESSING = "processing";
+    public static final String STATUS_SENT = "sent";
+    public static final String STATUS_FAILED = "failed";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Long id;
+
+    @Column(length = 2048)
+    @NotNull
+    public String message;
+
+    @Column(length = 10)
+    public String category;
+
+    @Column(length = 256)
+    public String link;
+
+    @Column(length = 120)
+    public String checkinUserId;
+
+    @Column(length = 120)
+    public String process;
+
+    @Column(length = 120)
+    public String role;
+
+    @Column(length = 120)
+    @NotNull
+    public String senderUserId;
+
+    @Column(length = 20)
+    @NotNull
+    public String status;
+
+    public Integer attempts;
+
+    // Not claimed again before this, null to claim as soon as possible
+    public LocalDateTime nextAttemptAt;
+
+    public Integer sentMessages;
+
+    @Column(length = 1024)
+    public String error;
+
+    public LocalDateTime createdOn;
+
+    @UpdateTimestamp
+    public LocalDateTime changedOn;
+
+
+    /***
+     * Constructor
+     */
+    public OutboxEntity() { super(); }
+
+    /***
+     * Construct from message
+     * @param message The notification message and its recipient(s)
+     * @param senderUserId The user sending the message
+     */
+    public OutboxEntity(Message message, String senderUserId) {
+        super();
+
+        this.message = message.message;
+        this.category = message.category;
+        this.link = message.url;
+        this.checkinUserId = message.checkinUserId;
+        this.process = message.process;
+        this.role = message.role;
+        this.senderUserId = senderUserId;
+        this.status = STATUS_PENDING;
+        this.attempts = 0;
+        this.createdOn = ZonedDateTime.now(ZoneOffset.UTC)
+                            .withZoneSameInstant(ZoneId.systemDefault())
+                            .toLocalDateTime();
+    }
+
+    /***
+     * Get specific send request.
+     * @param requestId The Id of the request
+     * @return Outbox entity
+     */
+    public static Uni<OutboxEntity> getRequest(Long requestId) {
+
+        return find("id", requestId).firstResult();
+    }
+}
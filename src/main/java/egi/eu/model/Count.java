@@ -19,6 +19,9 @@ public class Count extends ActionSuccess {
     @JsonInclude(JsonInclude.Include.NON_NULL)
     public Integer sentMessages = null;
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer readMessages = null;
+
     /***
      * Constructor
      */
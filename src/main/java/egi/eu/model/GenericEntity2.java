@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 import java.lang.reflect.ParameterizedType;
 
+import egi.eu.Utils;
+
 
 /**
  * Base generic entity with 2 type parameters
@@ -13,6 +15,37 @@ public abstract class GenericEntity2<T, M> {
 
     public String kind;
 
+    /***
+     * Type parameters of a concrete entity class, resolved once per class
+     * @param first Class of the first type parameter (T), null if not a class
+     * @param second Class of the second type parameter (M), null if not a class
+     * @param firstName Simple name of the first type parameter, null if unknown
+     * @param secondDefault Default value of the second type parameter, null if none
+     */
+    private record TypeParameters(Class<?> first, Class<?> second, String firstName, Object secondDefault) {}
+
+    private static final ClassValue<TypeParameters> typeParameters = new ClassValue<>() {
+        @Override
+        protected TypeParameters computeValue(Class<?> entityClass) {
+            Class<?> first = null;
+            Class<?> second = null;
+            String firstName = null;
+            if(entityClass.getGenericSuperclass() instanceof ParameterizedType superclass) {
+                var arguments = superclass.getActualTypeArguments();
+                if(arguments.length > 0) {
+                    var name = arguments[0].getTypeName();
+                    var index = name.lastIndexOf('.');
+                    firstName = index >= 0 ? name.substring(index + 1) : name;
+                    first = arguments[0] instanceof Class<?> c ? c : null;
+                }
+                if(arguments.length > 1)
+                    second = arguments[1] instanceof Class<?> c ? c : null;
+            }
+
+            return new TypeParameters(first, second, firstName, Utils.defaultValueFor(second));
+        }
+    };
+
 
     /**
      * Constructor
@@ -21,14 +54,10 @@ public abstract class GenericEntity2<T, M> {
      * @param typeNameSuffix A suffix to use as part of the name
      */
     protected GenericEntity2(String typeNamePrefix, String typeNameSuffix, boolean pluralName) {
-        var type = getFirstTypeParameter();
-        if(null != type) {
-            var name = type.getTypeName();
-            var index = name.lastIndexOf('.');
-            name = index >= 0 ? name.substring(index + 1) : name;
-
+        var name = typeParameters.get(getClass()).firstName();
+        if(null != getFirstTypeParameter()) {
             if(null != typeNamePrefix)
-                this.kind = String.format("%sOf%s%s", typeNamePrefix, name, pluralName ? "s" : "");
+                this.kind = typeNamePrefix + "Of" + name + (pluralName ? "s" : "");
             else if(null != typeNameSuffix)
                 this.kind = name + typeNameSuffix;
         }
@@ -47,13 +76,7 @@ public abstract class GenericEntity2<T, M> {
      */
     @SuppressWarnings("unchecked")
     protected Class<T> getFirstTypeParameter() {
-        try {
-            ParameterizedType superclass = (ParameterizedType) getClass().getGenericSuperclass();
-            return (Class<T>) superclass.getActualTypeArguments()[0];
-        }
-        catch(Exception e) {
-            return null;
-        }
+        return (Class<T>) typeParameters.get(getClass()).first();
     }
 
     /***
@@ -62,12 +85,15 @@ public abstract class GenericEntity2<T, M> {
      */
     @SuppressWarnings("unchecked")
     protected Class<M> getSecondTypeParameter() {
-        try {
-            ParameterizedType superclass = (ParameterizedType) getClass().getGenericSuperclass();
-            return (Class<M>) superclass.getActualTypeArguments()[1];
-        }
-        catch(Exception e) {
-            return null;
-        }
+        return (Class<M>) typeParameters.get(getClass()).second();
+    }
+
+    /***
+     * Helper to get the default value of the second type parameter (M).
+     * @return Default value, see {@link Utils#defaultValueFor}, null if none
+     */
+    @SuppressWarnings("unchecked")
+    protected M getSecondTypeDefault() {
+        return (M) typeParameters.get(getClass()).secondDefault();
     }
 }
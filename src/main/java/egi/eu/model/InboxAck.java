@@ -0,0 +1,24 @@
+package egi.eu.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+
+
+/***
+ * Acknowledgement sent by a client over the inbox socket
+ */
+public class InboxAck {
+
+    @Schema(enumeration={ "InboxAck" })
+    public String kind = "InboxAck";
+
+    @Schema(description="Ids of the messages to mark as read")
+    public List<Long> read;
+
+
+    /***
+     * Constructor
+     */
+    public InboxAck() {}
+}
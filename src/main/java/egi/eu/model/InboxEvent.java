@@ -0,0 +1,77 @@
+package egi.eu.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+
+
+/***
+ * Change in the inbox of a user, pushed to the clients of the user
+ */
+public class InboxEvent {
+
+    public static final String TYPE_MESSAGE = "message";
+    public static final String TYPE_UNREAD = "unread";
+    public static final String TYPE_LATEST = "latest";
+    public static final String TYPE_HEARTBEAT = "heartbeat";
+
+    @Schema(enumeration={ "InboxEvent" })
+    public String kind = "InboxEvent";
+
+    @Schema(enumeration={ TYPE_MESSAGE, TYPE_UNREAD, TYPE_LATEST, TYPE_HEARTBEAT })
+    public String type;
+
+    @Schema(description="The new message, for events of type _message_")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Message message;
+
+    @Schema(description="The latest messages, for events of type _latest_")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<Message> messages;
+
+    @Schema(description="Number of unread messages, for events of type _unread_")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long unreadMessages;
+
+
+    /***
+     * Constructor
+     */
+    public InboxEvent() {}
+
+    /***
+     * Construct event of the specified type
+     * @param type The type of the event
+     */
+    public InboxEvent(String type) {
+        this.type = type;
+    }
+
+    /***
+     * Construct event for a new message
+     * @param message The new message
+     */
+    public InboxEvent(Message message) {
+        this.type = TYPE_MESSAGE;
+        this.message = message;
+    }
+
+    /***
+     * Construct event with the latest messages
+     * @param messages The latest messages, in reverse chronological order
+     */
+    public InboxEvent(List<Message> messages) {
+        this.type = TYPE_LATEST;
+        this.messages = messages;
+    }
+
+    /***
+     * Construct event for a change of the number of unread messages
+     * @param unreadMessages The number of unread messages
+     */
+    public InboxEvent(Long unreadMessages) {
+        this.type = TYPE_UNREAD;
+        this.unreadMessages = unreadMessages;
+    }
+}
@@ -60,16 +60,46 @@ public class Message {
      */
     public Message() {}
 
+    /***
+     * Construct from the selected columns of a message, see {@link MessageEntity#getMessages}
+     * @param id The Id of the delivery
+     * @param message The content of the message
+     * @param category The category of the message
+     * @param link The action link of the message
+     * @param wasRead Whether the recipient read the message
+     * @param sentOn When the message was sent
+     */
+    public Message(Long id, String message, String category, String link, Boolean wasRead, LocalDateTime sentOn) {
+        this.id = id;
+        this.message = message;
+        this.category = category;
+        this.url = link;
+        this.wasRead = Boolean.TRUE.equals(wasRead);
+        this.sentOn = sentOn;
+    }
+
     /***
      * Copy constructor
-     * @param message The entity to copy
+     * @param message The entity to copy, must have its content loaded
      */
     public Message(MessageEntity message) {
         this.id = message.id;
-        this.message = message.message;
-        this.category = message.category;
-        this.url = message.link;
+        this.message = message.content.message;
+        this.category = message.content.category;
+        this.url = message.content.link;
         this.wasRead = message.wasRead;
         this.sentOn = message.sentOn;
     }
+
+    /***
+     * Apply the read watermark of the recipient.
+     * @param readAllAt Messages sent at or before this are read, can be null
+     * @return Ourselves to allow . chaining notation
+     */
+    public Message readBefore(LocalDateTime readAllAt) {
+        if(null != readAllAt && null != sentOn && !sentOn.isAfter(readAllAt))
+            this.wasRead = true;
+
+        return this;
+    }
 }
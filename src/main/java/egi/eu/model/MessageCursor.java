@@ -0,0 +1,94 @@
+package egi.eu.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+
+/***
+ * Position in the list of messages of a user, which is ordered by (sentOn, id) descending.
+ * Encoded as an opaque string to be used as the "from" parameter of the next page.
+ */
+public class MessageCursor {
+
+    public final LocalDateTime sentOn;
+    public final long id;
+
+
+    /***
+     * Construct cursor
+     * @param sentOn The date and time the last returned message was sent
+     * @param id The Id of the last returned message
+     */
+    public MessageCursor(LocalDateTime sentOn, long id) {
+        this.sentOn = sentOn;
+        this.id = id;
+    }
+
+    /***
+     * Construct cursor after a message
+     * @param message The last returned message
+     */
+    public MessageCursor(Message message) {
+        this(message.sentOn, message.id);
+    }
+
+    /***
+     * Encode as an opaque string
+     * @return URL safe string
+     */
+    public String encode() {
+        var plain = sentOn.toString() + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /***
+     * Decode cursor from an opaque string
+     * @param cursor The string returned by {@link #encode()}
+     * @return Decoded cursor
+     * @throws IllegalArgumentException if the string is not a valid cursor
+     */
+    public static MessageCursor decode(String cursor) {
+        try {
+            var plain = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            var separator = plain.lastIndexOf('|');
+            if(separator < 0)
+                throw new IllegalArgumentException("Invalid cursor");
+
+            return new MessageCursor(LocalDateTime.parse(plain.substring(0, separator)),
+                                     Long.parseLong(plain.substring(separator + 1)));
+        }
+        catch(DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    /***
+     * Parse the "from" parameter of a list request, which is either a cursor returned by
+     * {@link #encode()}, or the UTC date and time of the last returned message.
+     * @param from The cursor or the date and time
+     * @return Decoded cursor, after all messages sent at the specified date and time
+     * @throws IllegalArgumentException if the parameter is neither a valid cursor nor a date and time
+     */
+    public static MessageCursor parse(String from) {
+        try {
+            return decode(from);
+        }
+        catch(IllegalArgumentException e) {
+            try {
+                // Convert from UTC to the local timezone, all messages sent at that time were returned
+                var sentOn = LocalDateTime.parse(from)
+                                          .atZone(ZoneOffset.UTC)
+                                          .withZoneSameInstant(ZoneId.systemDefault())
+                                          .toLocalDateTime();
+                return new MessageCursor(sentOn, 0);
+            }
+            catch(DateTimeParseException dtpe) {
+                throw new IllegalArgumentException("Invalid cursor", dtpe);
+            }
+        }
+    }
+}
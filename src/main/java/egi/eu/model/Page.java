@@ -10,8 +10,6 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 
-import egi.eu.Utils;
-
 
 /**
  * Page of elements.
@@ -47,9 +45,7 @@ public abstract class Page<T, M> extends GenericEntity2<T, M> {
     public Page() {
         super("Page", null, true);
 
-        var fromType = getSecondTypeParameter();
-
-        this.from = Utils.defaultValueFor(fromType);
+        this.from = getSecondTypeDefault();
         this.limit = 100;
         this.count = 0;
         this.elements = new ArrayList<>();
@@ -80,8 +76,7 @@ public abstract class Page<T, M> extends GenericEntity2<T, M> {
         if(null == source)
             return this;
 
-        var type = getSecondTypeParameter();
-        boolean isLongFrom = Long.class.getTypeName().equals(type.getTypeName());
+        boolean isLongFrom = Long.class.equals(getSecondTypeParameter());
 
         // Populate page with elements
         this.from = from;
@@ -206,10 +201,8 @@ public abstract class Page<T, M> extends GenericEntity2<T, M> {
             this.nextPage =page.nextPage;
         }
         else {
-            var fromType = getSecondTypeParameter();
-
             this.elements = new ArrayList<>();
-            this.from = Utils.defaultValueFor(fromType);
+            this.from = getSecondTypeDefault();
             this.limit = 100;
             this.count = 0;
             this.prevPage = null;
@@ -0,0 +1,39 @@
+package egi.eu.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+
+/***
+ * Outcome of marking a message as read
+ */
+public class ReadStatus {
+
+    public static final String STATUS_READ = "read";
+    public static final String STATUS_ALREADY_READ = "alreadyRead";
+    public static final String STATUS_NOT_FOUND = "notFound";
+    public static final String STATUS_NO_ACCESS = "noAccess";
+
+    @Schema(enumeration={ "ReadStatus" })
+    public String kind = "ReadStatus";
+
+    public Long messageId;
+
+    @Schema(enumeration={ STATUS_READ, STATUS_ALREADY_READ, STATUS_NOT_FOUND, STATUS_NO_ACCESS })
+    public String status;
+
+
+    /***
+     * Constructor
+     */
+    public ReadStatus() {}
+
+    /***
+     * Construct with outcome
+     * @param messageId The Id of the message
+     * @param status The outcome of marking the message read
+     */
+    public ReadStatus(Long messageId, String status) {
+        this.messageId = messageId;
+        this.status = status;
+    }
+}
@@ -0,0 +1,56 @@
+package egi.eu.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+
+/***
+ * Position in the results of a message search, which are ordered by (rank, id) descending.
+ * Encoded as an opaque string to be used as the "from" parameter of the next page.
+ */
+public class SearchCursor {
+
+    public final float rank;
+    public final long id;
+
+
+    /***
+     * Construct cursor
+     * @param rank The rank of the last returned message
+     * @param id The Id of the last returned message
+     */
+    public SearchCursor(float rank, long id) {
+        this.rank = rank;
+        this.id = id;
+    }
+
+    /***
+     * Encode as an opaque string
+     * @return URL safe string
+     */
+    public String encode() {
+        var plain = Float.toString(rank) + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /***
+     * Decode cursor from an opaque string
+     * @param cursor The string returned by {@link #encode()}
+     * @return Decoded cursor
+     * @throws IllegalArgumentException if the string is not a valid cursor
+     */
+    public static SearchCursor decode(String cursor) {
+        try {
+            var plain = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            var separator = plain.lastIndexOf('|');
+            if(separator < 0)
+                throw new IllegalArgumentException("Invalid cursor");
+
+            return new SearchCursor(Float.parseFloat(plain.substring(0, separator)),
+                                    Long.parseLong(plain.substring(separator + 1)));
+        }
+        catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+}
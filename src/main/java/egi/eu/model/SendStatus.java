@@ -0,0 +1,63 @@
+package egi.eu.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.time.LocalDateTime;
+
+import egi.eu.entity.OutboxEntity;
+
+
+/***
+ * Status of a message sent asynchronously
+ */
+public class SendStatus {
+
+    @Schema(enumeration={ "SendStatus" })
+    public String kind = "SendStatus";
+
+    @Schema(description="Use this to query the status of the send request")
+    public Long trackingId;
+
+    @Schema(enumeration={ "pending", "processing", "sent", "failed" })
+    public String status;
+
+    @Schema(description="Number of messages sent, available once the status is _sent_")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer sentMessages;
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public String error;
+
+    @Schema(description="Date and time the send request was accepted.\n" +
+                        "Always returned as UTC date and time.")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    @JsonSerialize(using = VersionInfo.UtcLocalDateTimeSerializer.class)
+    public LocalDateTime createdOn; // UTC
+
+    @Schema(description="Date and time of the last status change.\n" +
+                        "Always returned as UTC date and time.")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    @JsonSerialize(using = VersionInfo.UtcLocalDateTimeSerializer.class)
+    public LocalDateTime changedOn; // UTC
+
+
+    /***
+     * Constructor
+     */
+    public SendStatus() {}
+
+    /***
+     * Copy constructor
+     * @param request The entity to copy
+     */
+    public SendStatus(OutboxEntity request) {
+        this.trackingId = request.id;
+        this.status = request.status;
+        this.sentMessages = request.sentMessages;
+        this.error = request.error;
+        this.createdOn = request.createdOn;
+        this.changedOn = request.changedOn;
+    }
+}
@@ -0,0 +1,2 @@
+-- The contents of messages were moved to message_contents by V2_1
+ALTER TABLE messages DROP COLUMN message, DROP COLUMN category, DROP COLUMN link;
@@ -0,0 +1,12 @@
+-- Notification messages, as originally created by Hibernate.
+-- Databases that already have this table are baselined at this version.
+CREATE TABLE IF NOT EXISTS messages (
+    id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    message varchar(2048),
+    category varchar(10),
+    link varchar(256),
+    wasRead boolean,
+    checkinUserId varchar(120),
+    sentOn timestamp(6),
+    changedOn timestamp(6)
+);
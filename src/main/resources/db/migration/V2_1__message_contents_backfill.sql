@@ -0,0 +1,25 @@
+-- Copies the contents of existing messages without holding locks for long, so this migration
+-- runs outside a transaction and commits after each batch. Can be resumed if interrupted.
+DO $$
+DECLARE
+    batchSize CONSTANT bigint := 10000;
+    lastId bigint := 0;
+    maxId bigint;
+BEGIN
+    SELECT COALESCE(MAX(id), 0) INTO maxId FROM messages WHERE contentId IS NULL;
+    WHILE lastId < maxId LOOP
+        INSERT INTO message_contents (id, message, category, link, sentOn)
+            SELECT id, message, category, link, sentOn FROM messages
+            WHERE id > lastId AND id <= lastId + batchSize AND contentId IS NULL
+            ON CONFLICT (id) DO NOTHING;
+
+        UPDATE messages SET contentId = id
+            WHERE id > lastId AND id <= lastId + batchSize AND contentId IS NULL;
+
+        lastId := lastId + batchSize;
+        COMMIT;
+    END LOOP;
+END $$;
+
+-- Only blocks schema changes while checking the existing rows
+ALTER TABLE messages VALIDATE CONSTRAINT messages_content_fk;
@@ -0,0 +1,25 @@
+-- Messages that were never marked read are unread, store that as false so that all queries
+-- count unread messages the same way. Runs outside a transaction and commits after each batch.
+ALTER TABLE messages ALTER COLUMN wasRead SET DEFAULT false;
+
+DO $$
+DECLARE
+    batchSize CONSTANT bigint := 10000;
+    lastId bigint := 0;
+    maxId bigint;
+BEGIN
+    SELECT COALESCE(MAX(id), 0) INTO maxId FROM messages WHERE wasRead IS NULL;
+    WHILE lastId < maxId LOOP
+        UPDATE messages SET wasRead = false
+            WHERE id > lastId AND id <= lastId + batchSize AND wasRead IS NULL;
+
+        lastId := lastId + batchSize;
+        COMMIT;
+    END LOOP;
+END $$;
+
+-- Validating the check does not block writers, SET NOT NULL then uses it instead of scanning the table
+ALTER TABLE messages ADD CONSTRAINT messages_was_read_not_null CHECK (wasRead IS NOT NULL) NOT VALID;
+ALTER TABLE messages VALIDATE CONSTRAINT messages_was_read_not_null;
+ALTER TABLE messages ALTER COLUMN wasRead SET NOT NULL;
+ALTER TABLE messages DROP CONSTRAINT messages_was_read_not_null;
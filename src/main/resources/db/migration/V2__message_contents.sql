@@ -0,0 +1,19 @@
+-- Store the content of a message once, with one delivery row per recipient.
+-- Existing messages keep their content under the same id, they are copied by the next
+-- migration in batches, and their old columns are dropped by a later one.
+CREATE TABLE message_contents (
+    id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    message varchar(2048),
+    category varchar(10),
+    link varchar(256),
+    sentOn timestamp(6)
+);
+
+-- New contents must not take the ids of the existing messages
+SELECT setval(pg_get_serial_sequence('message_contents', 'id'),
+              COALESCE((SELECT MAX(id) FROM messages), 0) + 1, false);
+
+-- Not validated here, that would scan all messages while holding an exclusive lock
+ALTER TABLE messages ADD COLUMN contentId bigint;
+ALTER TABLE messages ADD CONSTRAINT messages_content_fk
+    FOREIGN KEY (contentId) REFERENCES message_contents (id) NOT VALID;
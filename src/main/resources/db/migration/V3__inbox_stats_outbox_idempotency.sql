@@ -0,0 +1,41 @@
+-- Per-user unread/total counters, used for counting and as entity tag of the inbox
+CREATE TABLE user_inbox_stats (
+    checkinUserId varchar(120) PRIMARY KEY,
+    unread bigint,
+    total bigint,
+    lastReadAllAt timestamp(6),
+    revision bigint,
+    changedOn timestamp(6)
+);
+
+INSERT INTO user_inbox_stats (checkinUserId, unread, total, revision, changedOn)
+    SELECT checkinUserId, COUNT(*) FILTER (WHERE wasRead = false), COUNT(*), 1, LOCALTIMESTAMP
+    FROM messages
+    WHERE checkinUserId IS NOT NULL
+    GROUP BY checkinUserId;
+
+-- Send requests processed in the background
+CREATE TABLE message_outbox (
+    id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    message varchar(2048),
+    category varchar(10),
+    link varchar(256),
+    checkinUserId varchar(120),
+    process varchar(120),
+    role varchar(120),
+    senderUserId varchar(120),
+    status varchar(20),
+    attempts integer,
+    sentMessages integer,
+    error varchar(1024),
+    createdOn timestamp(6),
+    changedOn timestamp(6)
+);
+
+-- Results of send requests that carried an idempotency key
+CREATE TABLE message_idempotency (
+    id varchar(400) PRIMARY KEY,
+    senderUserId varchar(120),
+    sentMessages integer,
+    createdOn timestamp(6)
+);
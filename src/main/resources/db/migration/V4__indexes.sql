@@ -0,0 +1,24 @@
+-- Built without locking out writers, so this migration runs outside a transaction
+-- and must only contain CONCURRENTLY statements.
+
+-- Keyset pagination of the inbox, ordered by (sentOn, id) newest first
+CREATE INDEX CONCURRENTLY messages_recipient_sent
+    ON messages (checkinUserId, sentOn DESC, id DESC);
+
+-- Counting and listing unread messages, only covers the (few) unread rows
+CREATE INDEX CONCURRENTLY messages_recipient_unread
+    ON messages (checkinUserId, sentOn)
+    WHERE wasRead = false;
+
+-- Loading the deliveries of a message content
+CREATE INDEX CONCURRENTLY messages_content
+    ON messages (contentId);
+
+-- Claiming pending send requests in order
+CREATE INDEX CONCURRENTLY message_outbox_pending
+    ON message_outbox (id)
+    WHERE status = 'pending';
+
+-- Purging expired idempotency keys
+CREATE INDEX CONCURRENTLY message_idempotency_created
+    ON message_idempotency (createdOn);
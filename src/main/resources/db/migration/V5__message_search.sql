@@ -0,0 +1,4 @@
+-- Full-text search over the content of messages.
+-- The vector is maintained by the database, the application never writes it.
+ALTER TABLE message_contents
+    ADD COLUMN search tsvector GENERATED ALWAYS AS (to_tsvector('english', COALESCE(message, ''))) STORED;
@@ -0,0 +1,6 @@
+-- Built without locking out writers, so this migration runs outside a transaction
+-- and must only contain CONCURRENTLY statements.
+
+-- Finds the contents matching a search query
+CREATE INDEX CONCURRENTLY message_contents_search
+    ON message_contents USING GIN (search);
@@ -0,0 +1,6 @@
+-- Built without locking out writers, so this migration runs outside a transaction
+-- and must only contain CONCURRENTLY statements.
+
+-- Finding the oldest messages of all users, for purging by age
+CREATE INDEX CONCURRENTLY messages_sent
+    ON messages (sentOn, id);
@@ -0,0 +1,2 @@
+-- Failed send requests are retried with a growing delay
+ALTER TABLE message_outbox ADD COLUMN nextAttemptAt timestamp(6);
@@ -0,0 +1,2 @@
+-- Send requests queued with an idempotency key, so that retries return the original request
+ALTER TABLE message_idempotency ADD COLUMN outboxId bigint;
@@ -0,0 +1,62 @@
+package egi.eu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.core.EntityTag;
+
+
+public class BaseResourceTest {
+
+    private final BaseResource resource = new BaseResource(Logger.getLogger(BaseResourceTest.class));
+
+    @Test
+    @DisplayName("Matching entity tag means not modified")
+    public void testMatch() {
+        var etag = new EntityTag("42", true);
+        assertTrue(resource.notModified("\"42\"", etag));
+        assertFalse(resource.notModified("\"43\"", etag));
+        assertFalse(resource.notModified("\"420\"", etag));
+        assertFalse(resource.notModified("42", etag));
+    }
+
+    @Test
+    @DisplayName("Weak and strong tags match each other")
+    public void testWeakComparison() {
+        var weak = new EntityTag("42", true);
+        assertTrue(resource.notModified("W/\"42\"", weak));
+        assertTrue(resource.notModified("\"42\"", weak));
+
+        var strong = new EntityTag("42");
+        assertTrue(resource.notModified("W/\"42\"", strong));
+        assertFalse(resource.notModified("W/\"43\"", strong));
+    }
+
+    @Test
+    @DisplayName("Any tag in a list can match")
+    public void testList() {
+        var etag = new EntityTag("42", true);
+        assertTrue(resource.notModified("\"41\", W/\"42\"", etag));
+        assertTrue(resource.notModified("W/\"40\",\"42\" , \"43\"", etag));
+        assertFalse(resource.notModified("\"40\", W/\"41\", \"43\"", etag));
+    }
+
+    @Test
+    @DisplayName("Wildcard matches any current version")
+    public void testWildcard() {
+        assertTrue(resource.notModified("*", new EntityTag("42", true)));
+        assertTrue(resource.notModified(" * ", new EntityTag("0", true)));
+    }
+
+    @Test
+    @DisplayName("Without If-None-Match or entity tag the resource is returned")
+    public void testMissing() {
+        assertFalse(resource.notModified(null, new EntityTag("42", true)));
+        assertFalse(resource.notModified("", new EntityTag("42", true)));
+        assertFalse(resource.notModified("\"42\"", null));
+        assertFalse(resource.notModified("*", null));
+    }
+}
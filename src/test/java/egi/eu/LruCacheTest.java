@@ -0,0 +1,60 @@
+package egi.eu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class LruCacheTest {
+
+    @Test
+    @DisplayName("Evicts least recently used entry when full")
+    public void testEviction() {
+        var cache = new LruCache<String, Integer>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+
+        // Use a, so that b becomes the least recently used
+        assertEquals(1, cache.get("a"));
+
+        cache.put("c", 3);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.get("c"));
+    }
+
+    @Test
+    @DisplayName("Expired entries are not returned")
+    public void testExpiration() {
+        var now = new AtomicLong(1000);
+        var cache = new LruCache<String, Integer>(10, Duration.ofMillis(20), now::get);
+        cache.put("a", 1);
+        assertEquals(1, cache.get("a"));
+
+        now.addAndGet(20);
+        assertEquals(1, cache.get("a"));
+
+        now.addAndGet(1);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    @DisplayName("Update only changes cached entries")
+    public void testUpdate() {
+        var cache = new LruCache<String, Integer>(10);
+        assertNull(cache.update("a", (k, v) -> v + 1));
+        assertNull(cache.get("a"));
+
+        cache.put("a", 1);
+        assertEquals(2, cache.update("a", (k, v) -> v + 1));
+        assertEquals(2, cache.get("a"));
+
+        assertNull(cache.update("a", (k, v) -> null));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,77 @@
+package egi.eu.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+
+public class MessageCursorTest {
+
+    private static String encode(String plain) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Decoding an encoded cursor returns the same position")
+    public void testRoundTrip() {
+        var sentOn = LocalDateTime.of(2024, 3, 15, 10, 20, 30, 123456000);
+        var decoded = MessageCursor.decode(new MessageCursor(sentOn, 42).encode());
+        assertEquals(sentOn, decoded.sentOn);
+        assertEquals(42, decoded.id);
+
+        // Whole seconds are encoded without fraction
+        sentOn = LocalDateTime.of(2024, 3, 15, 10, 20);
+        decoded = MessageCursor.decode(new MessageCursor(sentOn, Long.MAX_VALUE).encode());
+        assertEquals(sentOn, decoded.sentOn);
+        assertEquals(Long.MAX_VALUE, decoded.id);
+    }
+
+    @Test
+    @DisplayName("Encoded cursor is URL safe")
+    public void testUrlSafe() {
+        var cursor = new MessageCursor(LocalDateTime.of(2024, 12, 31, 23, 59, 59, 999999000), 1L << 40).encode();
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"), cursor);
+    }
+
+    @Test
+    @DisplayName("Date and time of the last message is accepted instead of a cursor")
+    public void testLegacyTimestamp() {
+        var cursor = MessageCursor.parse("2024-03-15T10:20:30.5");
+        var expected = LocalDateTime.of(2024, 3, 15, 10, 20, 30, 500000000)
+                                    .atZone(ZoneOffset.UTC)
+                                    .withZoneSameInstant(ZoneId.systemDefault())
+                                    .toLocalDateTime();
+        assertEquals(expected, cursor.sentOn);
+        assertEquals(0, cursor.id);
+    }
+
+    @Test
+    @DisplayName("Parsing a cursor decodes it")
+    public void testParseCursor() {
+        var sentOn = LocalDateTime.of(2024, 3, 15, 10, 20, 30);
+        var cursor = MessageCursor.parse(new MessageCursor(sentOn, 7).encode());
+        assertEquals(sentOn, cursor.sentOn);
+        assertEquals(7, cursor.id);
+    }
+
+    @Test
+    @DisplayName("Malformed cursors are rejected")
+    public void testMalformed() {
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.decode("not a cursor"));
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.decode(encode("2024-03-15T10:20:30")));
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.decode(encode("yesterday|1")));
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.decode(encode("2024-03-15T10:20:30|x")));
+
+        // Neither a cursor nor a date and time, the list request fails with 400
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.parse("not a cursor"));
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.parse("2024-13-45T10:20:30"));
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.parse(encode("2024-03-15|1")));
+    }
+}
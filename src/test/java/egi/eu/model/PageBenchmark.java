@@ -0,0 +1,214 @@
+package egi.eu.model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import jakarta.ws.rs.core.UriBuilder;
+
+import java.lang.reflect.ParameterizedType;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import egi.eu.Utils;
+
+
+/***
+ * Measures the cost of constructing pages of messages.
+ * LegacyPage reproduces how pages resolved their type parameters before they were cached,
+ * so that both variants of construction and population are measured.
+ * Run with: java -cp target/test-classes:<test classpath> egi.eu.model.PageBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageBenchmark {
+
+    /***
+     * Same shape as the page returned when listing messages
+     */
+    public static class PageOfMessages extends Page<Message, String> {
+        public PageOfMessages() { super(); }
+    }
+
+    /***
+     * Copy of the constructor and populate of {@link GenericEntity2} and {@link Page}
+     * before the type parameters were cached, resolves them with reflection on every call
+     */
+    public static abstract class LegacyPage<T, M> {
+
+        public String kind;
+        private URI baseUri;
+        public M from;
+        public int limit;
+        public long count;
+        public List<T> elements;
+        public String prevPage;
+        public String nextPage;
+
+        public LegacyPage() {
+            var type = getFirstTypeParameter();
+            if(null != type) {
+                var name = type.getTypeName();
+                var index = name.lastIndexOf('.');
+                name = index >= 0 ? name.substring(index + 1) : name;
+                this.kind = String.format("%sOf%s%s", "Page", name, "s");
+            }
+
+            if(null == kind || kind.isBlank())
+                this.kind = "Page";
+
+            var fromType = getSecondTypeParameter();
+
+            this.from = Utils.defaultValueFor(fromType);
+            this.limit = 100;
+            this.count = 0;
+            this.elements = new ArrayList<>();
+        }
+
+        @SuppressWarnings("unchecked")
+        protected Class<T> getFirstTypeParameter() {
+            try {
+                ParameterizedType superclass = (ParameterizedType) getClass().getGenericSuperclass();
+                return (Class<T>) superclass.getActualTypeArguments()[0];
+            }
+            catch(Exception e) {
+                return null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        protected Class<M> getSecondTypeParameter() {
+            try {
+                ParameterizedType superclass = (ParameterizedType) getClass().getGenericSuperclass();
+                return (Class<M>) superclass.getActualTypeArguments()[1];
+            }
+            catch(Exception e) {
+                return null;
+            }
+        }
+
+        public LegacyPage<T, M> populate(String baseUri, M from, int limit, List<T> source, boolean skipTo) {
+            if(null == source)
+                return this;
+
+            var type = getSecondTypeParameter();
+            boolean isLongFrom = Long.class.getTypeName().equals(type.getTypeName());
+
+            this.from = from;
+            this.limit = limit;
+
+            if(skipTo && isLongFrom)
+                this.elements = source.stream().skip((long)from).limit(limit).toList();
+            else
+                this.elements = source.stream().limit(limit).toList();
+
+            this.count = this.elements.size();
+
+            try {
+                this.baseUri = null != baseUri ? new URI(baseUri) : null;
+            } catch(URISyntaxException e) {
+                // No links to prev/next pages
+            }
+
+            if(null != this.baseUri && isLongFrom) {
+                final long longFrom = (long)from;
+                long prevPageOffset = Math.max(0, longFrom - limit);
+                this.prevPage = prevPageOffset < longFrom ?
+                        UriBuilder.fromUri(baseUri)
+                                  .replaceQueryParam("from", prevPageOffset)
+                                  .replaceQueryParam("limit", limit)
+                                  .build().toString() : null;
+
+                long nextPageOffset = longFrom + limit;
+                this.nextPage = nextPageOffset < source.size() ?
+                        UriBuilder.fromUri(baseUri)
+                                  .replaceQueryParam("from", nextPageOffset)
+                                  .replaceQueryParam("limit", limit)
+                                  .build().toString() : null;
+            }
+            else {
+                this.prevPage = null;
+                this.nextPage = null;
+            }
+
+            return this;
+        }
+    }
+
+    /***
+     * Same shape as {@link PageOfMessages}, using the legacy page
+     */
+    public static class LegacyPageOfMessages extends LegacyPage<Message, String> {
+        public LegacyPageOfMessages() { super(); }
+    }
+
+    private static final String BASE_URI = "https://ims.egi.eu/api/messages?limit=100";
+
+    private List<Message> messages;
+
+
+    /***
+     * Prepare a full page of messages
+     */
+    @Setup
+    public void setup() {
+        messages = new ArrayList<>();
+        var now = LocalDateTime.now();
+        for(long i = 0; i < 100; i++)
+            messages.add(new Message(i, "Message " + i, "info", null, false, now.minusMinutes(i)));
+    }
+
+    /***
+     * Construct an empty page, resolving the kind and the default marker with reflection
+     */
+    @Benchmark
+    public LegacyPageOfMessages constructPageLegacy() {
+        return new LegacyPageOfMessages();
+    }
+
+    /***
+     * Construct an empty page, looking up the kind and the default marker
+     */
+    @Benchmark
+    public PageOfMessages constructPage() {
+        return new PageOfMessages();
+    }
+
+    /***
+     * Construct and populate a page the way it was done before the type parameters were cached
+     */
+    @Benchmark
+    public LegacyPage<Message, String> populatePageLegacy() {
+        return new LegacyPageOfMessages().populate(BASE_URI, null, 100, messages, false);
+    }
+
+    /***
+     * Construct and populate a page, as done when listing messages
+     */
+    @Benchmark
+    public Page<Message, String> populatePage() {
+        return new PageOfMessages().populate(BASE_URI, null, 100, messages, false);
+    }
+
+    /***
+     * Run the benchmarks
+     * @param args Not used
+     * @throws RunnerException if running the benchmarks fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        var options = new OptionsBuilder()
+                .include(PageBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
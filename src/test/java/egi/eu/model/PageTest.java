@@ -0,0 +1,83 @@
+package egi.eu.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class PageTest {
+
+    /***
+     * Same shape as the page returned when listing messages
+     */
+    public static class PageOfMessages extends Page<Message, String> {
+        public PageOfMessages() { super(); }
+    }
+
+    /***
+     * Page with a numeric marker
+     */
+    public static class PageOfRoles extends Page<Role, Long> {
+        public PageOfRoles() { super(); }
+    }
+
+    private static List<Message> messages(int count) {
+        var messages = new ArrayList<Message>();
+        var now = LocalDateTime.now();
+        for(long i = 0; i < count; i++)
+            messages.add(new Message(i, "Message " + i, "info", null, false, now.minusMinutes(i)));
+        return messages;
+    }
+
+    @Test
+    @DisplayName("Kind and default marker come from the type parameters")
+    public void testDefaults() {
+        var page = new PageOfMessages();
+        assertEquals("PageOfMessages", page.kind);
+        assertNull(page.from);
+        assertEquals(100, page.limit);
+        assertEquals(0, page.count);
+        assertTrue(page.elements.isEmpty());
+
+        var roles = new PageOfRoles();
+        assertEquals("PageOfRoles", roles.kind);
+        assertNull(roles.from);
+    }
+
+    @Test
+    @DisplayName("Clearing a page restores the default marker")
+    public void testCloneNull() {
+        var page = new PageOfMessages();
+        page.populate(null, "cursor", 10, messages(5), false);
+        assertEquals("cursor", page.from);
+
+        page.clone(null);
+        assertNull(page.from);
+        assertEquals(0, page.count);
+    }
+
+    @Test
+    @DisplayName("Only numeric markers skip elements and link to other pages")
+    public void testPopulate() {
+        var page = new PageOfMessages();
+        page.populate("https://ims.egi.eu/api/messages", "cursor", 10, messages(25), true);
+        assertEquals(10, page.count);
+        assertEquals(0L, page.elements.get(0).id);
+        assertNull(page.prevPage);
+        assertNull(page.nextPage);
+
+        var roles = new PageOfRoles();
+        var source = new ArrayList<Role>();
+        for(int i = 0; i < 25; i++)
+            source.add(new Role());
+        roles.populate("https://ims.egi.eu/api/roles", 10L, 10, source, true);
+        assertEquals(10, roles.count);
+        assertNotNull(roles.prevPage);
+        assertNotNull(roles.nextPage);
+    }
+}
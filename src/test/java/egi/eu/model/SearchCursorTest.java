@@ -0,0 +1,46 @@
+package egi.eu.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+
+public class SearchCursorTest {
+
+    private static String encode(String plain) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Decoding an encoded cursor returns exactly the same rank")
+    public void testRoundTrip() {
+        // Ranks are compared for equality with the ones in the database, they must not lose precision
+        float[] ranks = { 0f, 1f, 0.0607927f, 0.1f, 1f / 3, 1e-20f, Float.MIN_VALUE, Float.MIN_NORMAL,
+                          Math.nextUp(0.0607927f), Float.MAX_VALUE };
+        for(var rank : ranks) {
+            var decoded = SearchCursor.decode(new SearchCursor(rank, 42).encode());
+            assertEquals(Float.floatToIntBits(rank), Float.floatToIntBits(decoded.rank), Float.toString(rank));
+            assertEquals(42, decoded.id);
+        }
+    }
+
+    @Test
+    @DisplayName("Encoded cursor is URL safe")
+    public void testUrlSafe() {
+        var cursor = new SearchCursor(1e-20f, Long.MAX_VALUE).encode();
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"), cursor);
+    }
+
+    @Test
+    @DisplayName("Malformed cursors are rejected")
+    public void testMalformed() {
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode("not a cursor"));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("0.5")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("high|1")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("0.5|x")));
+    }
+}